@@ -4,10 +4,6 @@ import android.util.Log;
 
 import org.javia.arity.SyntaxException;
 
-import java.util.ArrayList;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
 public class BaseModule extends Module {
     private static final String TAG = "Calculator";
 
@@ -17,24 +13,18 @@ public class BaseModule extends Module {
     // How many decimal places to approximate base changes
     private final static int PRECISION = 8;
 
-    // Regex to strip out things like "90" from "sin(90)"
-    private final String REGEX_NUMBER;
-    private final String REGEX_NOT_NUMBER;
-
     // The current base. Defaults to decimal.
-    private Base mBase = Base.DECIMAL;
+    private volatile Base mBase = Base.DECIMAL;
+
+    // How many bits binary and hex numbers have, and if the top bit is the sign
+    private volatile WordSize mWordSize = WordSize.ARBITRARY;
+    private volatile boolean mSigned = true;
 
     // A listener for when the base changes.
     private OnBaseChangeListener mBaseChangeListener;
 
     BaseModule(Solver solver) {
         super(solver);
-
-        // Modify the constants to include a fake character, SELECTION_HANDLE
-        REGEX_NUMBER = Constants.REGEX_NUMBER
-                .substring(0, Constants.REGEX_NUMBER.length() - 1) + SELECTION_HANDLE + "]";
-        REGEX_NOT_NUMBER = Constants.REGEX_NOT_NUMBER
-                .substring(0, Constants.REGEX_NOT_NUMBER.length() - 1) + SELECTION_HANDLE + "]";
     }
 
     public Base getBase() {
@@ -43,6 +33,7 @@ public class BaseModule extends Module {
 
     public void setBase(Base base) {
         mBase = base;
+        getSolver().clearCache();
         if(mBaseChangeListener != null) mBaseChangeListener.onBaseChange(mBase);
     }
 
@@ -63,240 +54,228 @@ public class BaseModule extends Module {
      * Updates the text to the new base. This does not set the active base.
      * */
     String changeBase(final String originalText, final Base oldBase, final Base newBase) throws SyntaxException {
-        if(oldBase.equals(newBase) || originalText.isEmpty() || originalText.matches(REGEX_NOT_NUMBER)) {
+        if(oldBase.equals(newBase) || originalText.isEmpty()) {
             return originalText;
         }
 
-        String[] operations = originalText.split(REGEX_NUMBER);
-        String[] numbers = originalText.split(REGEX_NOT_NUMBER);
-        String[] translatedNumbers = new String[numbers.length];
-        for(int i = 0; i < numbers.length; i++) {
-            if(!numbers[i].isEmpty()) {
-                switch(oldBase) {
-                    case BINARY:
-                        switch(newBase) {
-                            case BINARY:
-                                break;
-                            case DECIMAL:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 2, 10);
-                                } catch(NumberFormatException e) {
-                                    throw new SyntaxException();
-                                }
-                                break;
-                            case HEXADECIMAL:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 2, 16);
-                                } catch(NumberFormatException e) {
-                                    throw new SyntaxException();
-                                }
-                                break;
-                        }
-                        break;
-                    case DECIMAL:
-                        switch(newBase) {
-                            case BINARY:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 10, 2);
-                                } catch(NumberFormatException e) {
-                                    throw new SyntaxException();
-                                }
-                                break;
-                            case DECIMAL:
-                                break;
-                            case HEXADECIMAL:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 10, 16);
-                                } catch(NumberFormatException e) {
-                                    throw new SyntaxException();
-                                }
-                                break;
-                        }
-                        break;
-                    case HEXADECIMAL:
-                        switch(newBase) {
-                            case BINARY:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 16, 2);
-                                } catch(NumberFormatException e) {
-                                    throw new SyntaxException();
-                                }
-                                break;
-                            case DECIMAL:
-                                try {
-                                    translatedNumbers[i] = newBase(numbers[i], 16, 10);
-                                } catch(NumberFormatException e) {
-                                    Log.e(TAG, numbers[i] + " is not a number", e);
-                                    throw new SyntaxException();
-                                }
-                                break;
-                            case HEXADECIMAL:
-                                break;
-                        }
-                        break;
+        StringBuilder text = new StringBuilder(originalText.length());
+        NumberLexer lexer = new NumberLexer(originalText, true);
+        while(lexer.next()) {
+            if(lexer.isNumber()) {
+                String number = lexer.getToken();
+                try {
+                    text.append(newBase(number, getRadix(oldBase), getRadix(newBase)));
+                } catch(NumberFormatException e) {
+                    Log.e(TAG, number + " is not a number", e);
+                    throw new SyntaxException();
                 }
+            } else {
+                text.append(originalText, lexer.getStart(), lexer.getEnd());
             }
         }
-        String text = "";
-        Object[] o = removeWhitespace(operations);
-        Object[] n = removeWhitespace(translatedNumbers);
-        if(originalText.substring(0, 1).matches(REGEX_NUMBER)) {
-            for(int i = 0; i < o.length && i < n.length; i++) {
-                text += n[i];
-                text += o[i];
-            }
-        } else {
-            for(int i = 0; i < o.length && i < n.length; i++) {
-                text += o[i];
-                text += n[i];
-            }
-        }
-        if(o.length > n.length) {
-            text += o[o.length - 1];
-        } else if(n.length > o.length) {
-            text += n[n.length - 1];
+        return text.toString();
+    }
+
+    private static int getRadix(Base base) {
+        switch(base) {
+            case BINARY:
+                return 2;
+            case HEXADECIMAL:
+                return 16;
+            default:
+                return 10;
         }
-        return text;
     }
 
     private String newBase(String originalNumber, int originalBase, int base) throws SyntaxException {
-        String[] split = originalNumber.split(Pattern.quote(getDecimalPoint()+""));
-        if(split.length == 0) {
-            split = new String[1];
-            split[0] = "0";
+        String wholeNumber = originalNumber;
+        String fraction = "";
+        int decimalPoint = originalNumber.indexOf(getDecimalPoint());
+        if(decimalPoint != -1) {
+            wholeNumber = originalNumber.substring(0, decimalPoint);
+            fraction = originalNumber.substring(decimalPoint + 1);
         }
-        if(split[0].isEmpty()) {
-            split[0] = "0";
-        }
-        if(originalBase != 10) {
-            split[0] = Long.toString(Long.parseLong(split[0], originalBase));
+        if(wholeNumber.isEmpty()) {
+            wholeNumber = "0";
         }
 
-        String wholeNumber = "";
-        switch(base) {
-            case 2:
-                wholeNumber = Long.toBinaryString(Long.parseLong(split[0]));
-                break;
-            case 10:
-                wholeNumber = split[0];
-                break;
-            case 16:
-                wholeNumber = Long.toHexString(Long.parseLong(split[0]));
-                break;
+        // Convert the bits directly, so numbers larger than a long survive
+        BitInteger whole = BitInteger.parse(wholeNumber, originalBase);
+        if(fraction.isEmpty()) {
+            if(originalBase != 10) {
+                // Reading binary or hex as a decimal, so the top bit may be the sign
+                whole = whole.wrap(mWordSize, mSigned);
+            }
+            String text = toString(whole, base);
+            if(whole.isNegative()) {
+                text = Constants.LEFT_PAREN + text + Constants.RIGHT_PAREN;
+            }
+            return text;
         }
-        if(split.length == 1) return wholeNumber.toUpperCase(Locale.US);
+        String wholeText = whole.toString(base);
 
         // Catch overflow (it's a decimal, it can be (slightly) rounded
-        if(split[1].length() > 13) {
-            split[1] = split[1].substring(0, 13);
+        if(fraction.length() > 13) {
+            fraction = fraction.substring(0, 13);
         }
 
-        double decimal = 0;
+        double decimal;
         if(originalBase != 10) {
-            String decimalFraction = Long.toString(Long.parseLong(split[1], originalBase)) + "/" + originalBase + "^" + split[1].length();
-            decimal = getSolver().eval(decimalFraction);
+            decimal = Long.parseLong(fraction, originalBase) / Math.pow(originalBase, fraction.length());
         } else {
-            decimal = Double.parseDouble("0." + split[1]);
+            decimal = Double.parseDouble("0." + fraction);
         }
-        if(decimal == 0) return wholeNumber.toUpperCase(Locale.US);
+        if(decimal == 0) return wholeText;
 
-        String decimalNumber = "";
+        StringBuilder text = new StringBuilder(wholeText.length() + PRECISION + 2);
+        text.append(wholeText).append(getDecimalPoint());
         for(int i = 0; decimal != 0 && i <= PRECISION; i++) {
             decimal *= base;
             int id = (int) Math.floor(decimal);
             decimal -= id;
-            decimalNumber += Integer.toHexString(id);
+            text.append(Character.toUpperCase(Character.forDigit(id, base)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes a result in the active base. Whole numbers are converted straight from the double
+     * (instead of from its rounded decimal text) and wrapped to the word size.
+     * */
+    String formatResult(double value, String decimalText) throws SyntaxException {
+        if(mBase != Base.DECIMAL && !Double.isInfinite(value) && value == Math.floor(value)) {
+            return toString(BitInteger.valueOf(value), getRadix(mBase));
         }
-        return (wholeNumber + getDecimalPoint() + decimalNumber).toUpperCase(Locale.US);
+        return changeBase(decimalText, Base.DECIMAL, mBase);
     }
 
-    private Object[] removeWhitespace(String[] strings) {
-        ArrayList<String> formatted = new ArrayList<String>(strings.length);
-        for(String s : strings) {
-            if(s != null && !s.isEmpty()) formatted.add(s);
+    /**
+     * Solves equations made of whole numbers in the active base (binary or hex) without
+     * converting them to decimal. Supports addition, subtraction, multiplication, powers and
+     * parenthesis, as well as the bitwise operators and, or, xor, not, shl, shr, rol and ror.
+     *
+     * Returns null if the equation needs anything else (decimals, division, functions),
+     * in which case it should be solved as a decimal instead.
+     * */
+    String solveInteger(String input) {
+        if(mBase == Base.DECIMAL) return null;
+
+        int radix = getRadix(mBase);
+        BitInteger value = new IntegerEvaluator(input, radix, mWordSize, mSigned).evaluate();
+        if(value == null) return null;
+        return toString(value, radix);
+    }
+
+    /**
+     * Writes the number in the radix. Fixed word sizes show the raw bits for binary and hex.
+     * */
+    private String toString(BitInteger value, int radix) {
+        if(radix != 10) {
+            value = value.wrap(mWordSize, false);
         }
-        return formatted.toArray();
+        if(value.isNegative()) {
+            return Constants.MINUS + value.negate().toString(radix);
+        }
+        return value.toString(radix);
+    }
+
+    public WordSize getWordSize() {
+        return mWordSize;
+    }
+
+    /**
+     * Sets how many bits binary and hex numbers have. Defaults to WordSize.ARBITRARY.
+     * */
+    public void setWordSize(WordSize wordSize) {
+        mWordSize = wordSize;
+    }
+
+    public boolean isSigned() {
+        return mSigned;
+    }
+
+    /**
+     * If signed, the top bit of a binary or hex number is its sign (two's complement).
+     * Only applies to fixed word sizes.
+     * */
+    public void setSigned(boolean signed) {
+        mSigned = signed;
     }
 
     public String groupSentence(String originalText, int selectionHandle) {
-        if(originalText.isEmpty() || originalText.matches(REGEX_NOT_NUMBER)) return originalText;
+        if(originalText.isEmpty()) return originalText;
+
+        // A lone operator has nothing to group
+        if(originalText.length() == 1 && !new NumberLexer(originalText, true).isNumber(originalText.charAt(0))) {
+            return originalText;
+        }
 
         if(selectionHandle >= 0 && selectionHandle <= originalText.length()) {
             originalText = originalText.substring(0, selectionHandle) +
                     SELECTION_HANDLE +
                     originalText.substring(selectionHandle);
         }
-        String[] operations = originalText.split(REGEX_NUMBER);
-        String[] numbers = originalText.split(REGEX_NOT_NUMBER);
-        String[] translatedNumbers = new String[numbers.length];
-        for(int i = 0; i < numbers.length; i++) {
-            if(!numbers[i].isEmpty()) {
-                translatedNumbers[i] = groupDigits(numbers[i], mBase);
-            }
-        }
-        String text = "";
-        Object[] o = removeWhitespace(operations);
-        Object[] n = removeWhitespace(translatedNumbers);
-        if(originalText.substring(0, 1).matches(REGEX_NUMBER)) {
-            for(int i = 0; i < o.length && i < n.length; i++) {
-                text += n[i];
-                text += o[i];
-            }
-        } else {
-            for(int i = 0; i < o.length && i < n.length; i++) {
-                text += o[i];
-                text += n[i];
+
+        StringBuilder text = new StringBuilder(originalText.length() + originalText.length() / 2);
+        NumberLexer lexer = new NumberLexer(originalText, true);
+        while(lexer.next()) {
+            if(lexer.isNumber()) {
+                groupDigits(originalText.subSequence(lexer.getStart(), lexer.getEnd()), mBase, text);
+            } else {
+                text.append(originalText, lexer.getStart(), lexer.getEnd());
             }
         }
-        if(o.length > n.length) {
-            text += o[o.length - 1];
-        } else if(n.length > o.length) {
-            text += n[n.length - 1];
-        }
-
-        return text;
+        return text.toString();
     }
 
     public String groupDigits(String number, Base base) {
-        String sign = "";
-        if(Solver.isNegative(number)) {
-            sign = String.valueOf(Constants.MINUS);
-            number = number.substring(1);
+        StringBuilder text = new StringBuilder(number.length() + number.length() / 2);
+        groupDigits(number, base, text);
+        return text.toString();
+    }
+
+    /**
+     * Same as groupDigits(String, Base), but appends the grouped number to text.
+     * */
+    void groupDigits(CharSequence number, Base base, StringBuilder text) {
+        int start = 0;
+        if(number.length() > 0 && (number.charAt(0) == Constants.MINUS || number.charAt(0) == '-')) {
+            text.append(Constants.MINUS);
+            start = 1;
         }
-        String wholeNumber = number;
-        String remainder = "";
+
         // We only group the whole number
-        if(number.contains(getDecimalPoint()+"")) {
-            if(!number.startsWith(getDecimalPoint()+"")) {
-                String[] temp = number.split(Pattern.quote(getDecimalPoint()+""));
-                wholeNumber = temp[0];
-                remainder = getDecimalPoint() + ((temp.length == 1) ? "" : temp[1]);
-            } else {
-                wholeNumber = "";
-                remainder = number;
+        int end = number.length();
+        char decimalPoint = getDecimalPoint();
+        for(int i = start; i < number.length(); i++) {
+            if(number.charAt(i) == decimalPoint) {
+                end = i;
+                break;
             }
         }
 
-        String modifiedNumber = group(wholeNumber, getSeparatorDistance(base), getSeparator(base));
-
-        return sign + modifiedNumber + remainder;
+        group(number, start, end, getSeparatorDistance(base), getSeparator(base), text);
+        text.append(number, end, number.length());
     }
 
-    private String group(String wholeNumber, int spacing, char separator) {
-        StringBuilder sb = new StringBuilder();
-        int digitsSeen = 0;
+    private void group(CharSequence number, int start, int end, int spacing, char separator, StringBuilder text) {
+        // Count the digits first, so that we know where the first separator goes
+        int digits = 0;
+        for(int i = start; i < end; i++) {
+            if(number.charAt(i) != SELECTION_HANDLE) digits++;
+        }
 
-        for (int i = wholeNumber.length()-1; i >= 0; --i) {
-            char curChar = wholeNumber.charAt(i);
-            sb.insert(0, curChar);
-            if (curChar != SELECTION_HANDLE && i != 0 && !(i == 1 && wholeNumber.charAt(0) == SELECTION_HANDLE)) {
-                ++digitsSeen;
-                if (digitsSeen > 0 && digitsSeen % spacing == 0) {
-                    sb.insert(0, separator);
+        int digitsSeen = 0;
+        for(int i = start; i < end; i++) {
+            char curChar = number.charAt(i);
+            if(curChar != SELECTION_HANDLE) {
+                if(digitsSeen > 0 && (digits - digitsSeen) % spacing == 0) {
+                    text.append(separator);
                 }
+                digitsSeen++;
             }
+            text.append(curChar);
         }
-        return sb.toString();
     }
 
     public char getSeparator(Base base) {
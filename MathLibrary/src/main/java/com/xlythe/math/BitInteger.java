@@ -0,0 +1,522 @@
+package com.xlythe.math;
+
+/**
+ * An immutable integer of any size, used for programmer mode (binary and hexadecimal).
+ *
+ * Stored as two's complement 64 bit words, least significant word first, so bitwise
+ * operations work on whole words at a time. The last word always holds the sign.
+ *
+ * ie. -1 is {0xFFFFFFFFFFFFFFFF}, 2^64 is {0x0, 0x1}
+ */
+public final class BitInteger {
+    public static final BitInteger ZERO = new BitInteger(new long[] { 0 });
+    public static final BitInteger ONE = new BitInteger(new long[] { 1 });
+
+    // The lower 32 bits of a long, for working with unsigned ints
+    private static final long INT_MASK = 0xFFFFFFFFL;
+
+    // The largest power of 10 that fits in an int, used to parse and print decimals 9 digits at a time
+    private static final int DECIMAL_CHUNK = 1000000000;
+    private static final int DECIMAL_CHUNK_DIGITS = 9;
+
+    private final long[] mWords;
+
+    private BitInteger(long[] words) {
+        mWords = normalize(words);
+    }
+
+    public static BitInteger valueOf(long value) {
+        if(value == 0) return ZERO;
+        if(value == 1) return ONE;
+        return new BitInteger(new long[] { value });
+    }
+
+    /**
+     * Converts a whole number (such as the result of arity) without losing any bits.
+     * Throws NumberFormatException if the value is not a whole number.
+     * */
+    public static BitInteger valueOf(double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value) || value != Math.floor(value)) {
+            throw new NumberFormatException(value + " is not a whole number");
+        }
+        if(Math.abs(value) < 0x1p63) {
+            return valueOf((long) value);
+        }
+
+        long bits = Double.doubleToLongBits(value);
+        int exponent = (int) ((bits >> 52) & 0x7FF) - 1075;
+        long mantissa = (bits & 0xFFFFFFFFFFFFFL) | 0x10000000000000L;
+        BitInteger result = valueOf(mantissa).shiftLeft(exponent);
+        return value < 0 ? result.negate() : result;
+    }
+
+    /**
+     * Parses a whole number written in the given radix, with an optional leading minus sign.
+     * Throws NumberFormatException if the text isn't a number.
+     * */
+    public static BitInteger parse(CharSequence text, int radix) {
+        int start = 0;
+        boolean negative = false;
+        if(text.length() > 0 && (text.charAt(0) == '-' || text.charAt(0) == Constants.MINUS)) {
+            negative = true;
+            start = 1;
+        }
+        if(start == text.length()) {
+            throw new NumberFormatException("\"" + text + "\" is not a number");
+        }
+
+        BitInteger result;
+        if(radix == 2 || radix == 16) {
+            result = parsePowerOfTwo(text, start, radix);
+        } else {
+            result = parseAnyRadix(text, start, radix);
+        }
+        return negative ? result.negate() : result;
+    }
+
+    /**
+     * Each digit is a fixed number of bits, so they're dropped straight into place.
+     * */
+    private static BitInteger parsePowerOfTwo(CharSequence text, int start, int radix) {
+        int bitsPerDigit = radix == 2 ? 1 : 4;
+        int digits = text.length() - start;
+        // One extra word so that the top bit is never mistaken for the sign
+        long[] words = new long[digits * bitsPerDigit / 64 + 2];
+
+        int position = 0;
+        for(int i = text.length() - 1; i >= start; i--) {
+            long digit = digit(text, i, radix);
+            words[position >>> 6] |= digit << (position & 63);
+            position += bitsPerDigit;
+        }
+        return new BitInteger(words);
+    }
+
+    /**
+     * Multiplies and adds, several digits at a time, into 32 bit limbs.
+     * */
+    private static BitInteger parseAnyRadix(CharSequence text, int start, int radix) {
+        if(radix < Character.MIN_RADIX || radix > Character.MAX_RADIX) {
+            throw new NumberFormatException("Radix " + radix + " is not supported");
+        }
+
+        // Find how many digits fit in an int at once
+        int chunkDigits = 1;
+        int chunk = radix;
+        while(chunk <= Integer.MAX_VALUE / radix) {
+            chunk *= radix;
+            chunkDigits++;
+        }
+
+        int digits = text.length() - start;
+        // Each digit needs at most 6 bits (radix 36)
+        int[] magnitude = new int[digits * 6 / 32 + 2];
+        int length = 0;
+
+        int i = start;
+        int firstChunk = digits % chunkDigits;
+        if(firstChunk == 0) firstChunk = chunkDigits;
+        while(i < text.length()) {
+            int end = i == start ? i + firstChunk : i + chunkDigits;
+            int value = 0;
+            int multiplier = 1;
+            for(; i < end; i++) {
+                value = value * radix + digit(text, i, radix);
+                multiplier *= radix;
+            }
+            length = multiplyAdd(magnitude, length, multiplier, value);
+        }
+        return fromMagnitude(magnitude, length);
+    }
+
+    private static int digit(CharSequence text, int index, int radix) {
+        int digit = Character.digit(text.charAt(index), radix);
+        if(digit == -1) {
+            throw new NumberFormatException("\"" + text + "\" is not a number");
+        }
+        return digit;
+    }
+
+    public BitInteger and(BitInteger other) {
+        long[] words = new long[Math.max(mWords.length, other.mWords.length)];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = word(i) & other.word(i);
+        }
+        return new BitInteger(words);
+    }
+
+    public BitInteger or(BitInteger other) {
+        long[] words = new long[Math.max(mWords.length, other.mWords.length)];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = word(i) | other.word(i);
+        }
+        return new BitInteger(words);
+    }
+
+    public BitInteger xor(BitInteger other) {
+        long[] words = new long[Math.max(mWords.length, other.mWords.length)];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = word(i) ^ other.word(i);
+        }
+        return new BitInteger(words);
+    }
+
+    public BitInteger not() {
+        long[] words = new long[mWords.length];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = ~mWords[i];
+        }
+        return new BitInteger(words);
+    }
+
+    public BitInteger negate() {
+        return not().add(ONE);
+    }
+
+    public BitInteger add(BitInteger other) {
+        long[] words = new long[Math.max(mWords.length, other.mWords.length) + 1];
+        long carry = 0;
+        for(int i = 0; i < words.length; i++) {
+            long a = word(i);
+            long sum = a + other.word(i);
+            long nextCarry = lessThanUnsigned(sum, a) ? 1 : 0;
+            long total = sum + carry;
+            if(lessThanUnsigned(total, sum)) nextCarry = 1;
+            words[i] = total;
+            carry = nextCarry;
+        }
+        return new BitInteger(words);
+    }
+
+    public BitInteger subtract(BitInteger other) {
+        return add(other.negate());
+    }
+
+    public BitInteger multiply(BitInteger other) {
+        if(isNegative()) return negate().multiply(other).negate();
+        if(other.isNegative()) return multiply(other.negate()).negate();
+
+        int[] a = toMagnitude();
+        int[] b = other.toMagnitude();
+        int aLength = magnitudeLength(a);
+        int bLength = magnitudeLength(b);
+        int[] product = new int[aLength + bLength + 1];
+        for(int i = 0; i < aLength; i++) {
+            long carry = 0;
+            long x = a[i] & INT_MASK;
+            for(int j = 0; j < bLength; j++) {
+                long sum = x * (b[j] & INT_MASK) + (product[i + j] & INT_MASK) + carry;
+                product[i + j] = (int) sum;
+                carry = sum >>> 32;
+            }
+            product[i + bLength] = (int) carry;
+        }
+        return fromMagnitude(product, product.length);
+    }
+
+    /**
+     * Shifts the bits left, filling in with 0's. A negative distance shifts right.
+     * */
+    public BitInteger shiftLeft(int distance) {
+        if(distance < 0) return shiftRight(-distance);
+        if(distance == 0) return this;
+
+        int wordShift = distance >>> 6;
+        int bitShift = distance & 63;
+        long[] words = new long[mWords.length + wordShift + 1];
+        for(int i = wordShift; i < words.length; i++) {
+            long value = word(i - wordShift) << bitShift;
+            if(bitShift != 0) value |= word(i - wordShift - 1) >>> (64 - bitShift);
+            words[i] = value;
+        }
+        return new BitInteger(words);
+    }
+
+    /**
+     * Shifts the bits right, keeping the sign (like >>). A negative distance shifts left.
+     * */
+    public BitInteger shiftRight(int distance) {
+        if(distance < 0) return shiftLeft(-distance);
+        if(distance == 0) return this;
+
+        int wordShift = distance >>> 6;
+        int bitShift = distance & 63;
+        long[] words = new long[Math.max(1, mWords.length - wordShift)];
+        for(int i = 0; i < words.length; i++) {
+            long value = word(i + wordShift) >>> bitShift;
+            if(bitShift != 0) value |= word(i + wordShift + 1) << (64 - bitShift);
+            else value = word(i + wordShift);
+            words[i] = value;
+        }
+        return new BitInteger(words);
+    }
+
+    /**
+     * Rotates the bits left within the word size. Bits that fall off the top come back in
+     * at the bottom.
+     * */
+    public BitInteger rotateLeft(int distance, WordSize size, boolean signed) {
+        if(size.isArbitrary()) {
+            throw new IllegalArgumentException("Only fixed word sizes can be rotated");
+        }
+        int bits = size.getBits();
+        distance %= bits;
+        if(distance < 0) distance += bits;
+
+        BitInteger value = wrap(size, false);
+        return value.shiftLeft(distance).or(value.shiftRight(bits - distance)).wrap(size, signed);
+    }
+
+    /**
+     * Rotates the bits right within the word size. Bits that fall off the bottom come back in
+     * at the top.
+     * */
+    public BitInteger rotateRight(int distance, WordSize size, boolean signed) {
+        if(size.isArbitrary()) {
+            throw new IllegalArgumentException("Only fixed word sizes can be rotated");
+        }
+        return rotateLeft(-(distance % size.getBits()), size, signed);
+    }
+
+    /**
+     * Cuts the number down to the word size. If signed, the top bit becomes the sign.
+     * Arbitrary word sizes are returned as is.
+     *
+     * ie. 0x1FF as an unsigned byte is 0xFF, and as a signed byte is -1
+     * */
+    public BitInteger wrap(WordSize size, boolean signed) {
+        if(size.isArbitrary()) return this;
+
+        int bits = size.getBits();
+        int wordCount = (bits + 63) >>> 6;
+        long[] words = new long[wordCount + 1];
+        for(int i = 0; i < wordCount; i++) {
+            words[i] = word(i);
+        }
+
+        int partialBits = bits & 63;
+        if(partialBits != 0) {
+            int unused = 64 - partialBits;
+            long top = words[wordCount - 1] << unused;
+            words[wordCount - 1] = signed ? top >> unused : top >>> unused;
+        }
+        if(signed && words[wordCount - 1] < 0) {
+            words[wordCount] = -1;
+        }
+        return new BitInteger(words);
+    }
+
+    public boolean testBit(int bit) {
+        return ((word(bit >>> 6) >>> (bit & 63)) & 1) != 0;
+    }
+
+    public boolean isNegative() {
+        return mWords[mWords.length - 1] < 0;
+    }
+
+    public int signum() {
+        if(isNegative()) return -1;
+        return mWords.length == 1 && mWords[0] == 0 ? 0 : 1;
+    }
+
+    /**
+     * The lowest 64 bits of the number
+     * */
+    public long longValue() {
+        return mWords[0];
+    }
+
+    public double doubleValue() {
+        if(mWords.length == 1) return mWords[0];
+        // Let the JDK handle rounding the extra bits
+        return Double.parseDouble(toString(10));
+    }
+
+    /**
+     * Writes the number in the given radix, using upper case letters.
+     * Negative numbers get a leading '-'.
+     * */
+    public String toString(int radix) {
+        if(isNegative()) {
+            return "-" + negate().toString(radix);
+        }
+        if(signum() == 0) {
+            return "0";
+        }
+
+        if(radix == 2 || radix == 16) {
+            return toStringPowerOfTwo(radix);
+        }
+        return toStringAnyRadix(radix);
+    }
+
+    private String toStringPowerOfTwo(int radix) {
+        int bitsPerDigit = radix == 2 ? 1 : 4;
+        int mask = radix - 1;
+        int digits = (bitLength() + bitsPerDigit - 1) / bitsPerDigit;
+        char[] text = new char[digits];
+        int position = 0;
+        for(int i = digits - 1; i >= 0; i--) {
+            int digit = (int) (word(position >>> 6) >>> (position & 63)) & mask;
+            text[i] = Character.toUpperCase(Character.forDigit(digit, radix));
+            position += bitsPerDigit;
+        }
+        return new String(text);
+    }
+
+    private String toStringAnyRadix(int radix) {
+        if(radix < Character.MIN_RADIX || radix > Character.MAX_RADIX) {
+            throw new NumberFormatException("Radix " + radix + " is not supported");
+        }
+
+        int chunkDigits = 1;
+        int chunk = radix;
+        if(radix == 10) {
+            chunk = DECIMAL_CHUNK;
+            chunkDigits = DECIMAL_CHUNK_DIGITS;
+        } else {
+            while(chunk <= Integer.MAX_VALUE / radix) {
+                chunk *= radix;
+                chunkDigits++;
+            }
+        }
+
+        int[] magnitude = toMagnitude();
+        int length = magnitudeLength(magnitude);
+
+        // Written backwards, then reversed
+        StringBuilder text = new StringBuilder(length * 10);
+        while(length > 0) {
+            int remainder = divide(magnitude, length, chunk);
+            while(length > 0 && magnitude[length - 1] == 0) {
+                length--;
+            }
+            for(int i = 0; i < chunkDigits && (length > 0 || remainder != 0); i++) {
+                text.append(Character.toUpperCase(Character.forDigit(remainder % radix, radix)));
+                remainder /= radix;
+            }
+        }
+        return text.reverse().toString();
+    }
+
+    /**
+     * The number of bits needed to write the number, not counting the sign
+     * */
+    public int bitLength() {
+        int top = mWords.length - 1;
+        long sign = isNegative() ? -1 : 0;
+        while(top > 0 && mWords[top] == sign) {
+            top--;
+        }
+        long word = mWords[top] ^ sign;
+        return top * 64 + (64 - Long.numberOfLeadingZeros(word));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof BitInteger)) return false;
+        return java.util.Arrays.equals(mWords, ((BitInteger) o).mWords);
+    }
+
+    @Override
+    public int hashCode() {
+        return java.util.Arrays.hashCode(mWords);
+    }
+
+    @Override
+    public String toString() {
+        return toString(10);
+    }
+
+    /**
+     * Returns the word at the index, extending the sign past the last word
+     * */
+    private long word(int index) {
+        if(index < 0) return 0;
+        if(index >= mWords.length) return isNegative() ? -1 : 0;
+        return mWords[index];
+    }
+
+    /**
+     * Splits a non-negative number into unsigned 32 bit limbs, least significant first
+     * */
+    private int[] toMagnitude() {
+        int[] magnitude = new int[mWords.length * 2];
+        for(int i = 0; i < mWords.length; i++) {
+            magnitude[i * 2] = (int) mWords[i];
+            magnitude[i * 2 + 1] = (int) (mWords[i] >>> 32);
+        }
+        return magnitude;
+    }
+
+    private static int magnitudeLength(int[] magnitude) {
+        int length = magnitude.length;
+        while(length > 0 && magnitude[length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    private static BitInteger fromMagnitude(int[] magnitude, int length) {
+        // One extra word so that the top bit is never mistaken for the sign
+        long[] words = new long[(length + 1) / 2 + 1];
+        for(int i = 0; i < length; i++) {
+            words[i >>> 1] |= (magnitude[i] & INT_MASK) << ((i & 1) * 32);
+        }
+        return new BitInteger(words);
+    }
+
+    /**
+     * magnitude = magnitude * multiplier + addend. Returns the new length.
+     * */
+    private static int multiplyAdd(int[] magnitude, int length, int multiplier, int addend) {
+        long carry = addend & INT_MASK;
+        for(int i = 0; i < length; i++) {
+            long product = (magnitude[i] & INT_MASK) * (multiplier & INT_MASK) + carry;
+            magnitude[i] = (int) product;
+            carry = product >>> 32;
+        }
+        if(carry != 0) {
+            magnitude[length++] = (int) carry;
+        }
+        return length;
+    }
+
+    /**
+     * magnitude = magnitude / divisor. Returns the remainder.
+     * */
+    private static int divide(int[] magnitude, int length, int divisor) {
+        long remainder = 0;
+        for(int i = length - 1; i >= 0; i--) {
+            long current = (remainder << 32) | (magnitude[i] & INT_MASK);
+            magnitude[i] = (int) (current / divisor);
+            remainder = current % divisor;
+        }
+        return (int) remainder;
+    }
+
+    private static boolean lessThanUnsigned(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Drops words that only repeat the sign
+     * */
+    private static long[] normalize(long[] words) {
+        int length = words.length;
+        while(length > 1) {
+            long top = words[length - 1];
+            long next = words[length - 2];
+            if((top == 0 && next >= 0) || (top == -1 && next < 0)) {
+                length--;
+            } else {
+                break;
+            }
+        }
+        if(length == words.length) return words;
+        long[] trimmed = new long[length];
+        System.arraycopy(words, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
@@ -33,6 +33,9 @@ public class Constants {
     public static String REGEX_NUMBER;
     public static String REGEX_NOT_NUMBER;
 
+    // Bumped every time the constants are rebuilt, so caches can tell when they're stale
+    private static int sGeneration;
+
     static {
         rebuildConstants();
     }
@@ -64,5 +67,14 @@ public class Constants {
 
         REGEX_NUMBER = "[" + number + "]";
         REGEX_NOT_NUMBER = "[^" + number + "]";
+
+        sGeneration++;
+    }
+
+    /**
+     * Returns a counter that changes every time rebuildConstants() is called
+     * */
+    public static int getGeneration() {
+        return sGeneration;
     }
 }
@@ -0,0 +1,298 @@
+package com.xlythe.math;
+
+import org.ejml.simple.SimpleMatrix;
+import org.javia.arity.SyntaxException;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the expensive results (determinant, inverse, eigendecomposition, repeated
+ * squares) of recently used matrices.
+ *
+ * While typing after a matrix, the equation is evaluated again on every keystroke and the
+ * matrix is parsed into a brand new object each time. So entries are keyed by what's in the
+ * matrix rather than which object it is, and det, ^-1, ÷ and ^ on a matrix that hasn't
+ * changed don't factor it again.
+ *
+ * Bounded by the number of cells stored (keys and results). The least recently used
+ * matrices are dropped first. Small matrices are cheaper to recompute than to look up,
+ * so they're never stored.
+ *
+ * Matrices are returned as copies, so callers are free to write into them without changing
+ * what's cached. The one exception is squares(), which is only for MatrixPower.
+ */
+class DecompositionCache {
+    // Matrices with fewer cells than this aren't worth hashing
+    private static final int MIN_CELLS = 64;
+
+    // Stored for results that were computed, but don't exist (eg. the inverse of a singular matrix)
+    private static final Object NONE = new Object();
+
+    private static final int DETERMINANT = 0;
+    private static final int INVERSE = 1;
+    private static final int PSEUDO_INVERSE = 2;
+    private static final int EIGEN = 3;
+    private static final int SLOTS = 4;
+
+    private final LinkedHashMap<Object, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long mMaxCells;
+    private long mCells;
+
+    DecompositionCache(long maxCells) {
+        mMaxCells = maxCells;
+    }
+
+    double determinant(SimpleMatrix a) {
+        Entry entry = lookup(a);
+        Object cached = get(entry, DETERMINANT);
+        if(cached != null) return (Double) cached;
+
+        double determinant = MatrixKernels.determinant(a);
+        put(entry, DETERMINANT, determinant, 1);
+        return determinant;
+    }
+
+    double determinant(SparseMatrix a) {
+        Entry entry = lookup(a);
+        Object cached = get(entry, DETERMINANT);
+        if(cached != null) return (Double) cached;
+
+        double determinant = a.determinant();
+        put(entry, DETERMINANT, determinant, 1);
+        return determinant;
+    }
+
+    /**
+     * Returns A^-1, or null if A is singular
+     * */
+    SimpleMatrix invert(SimpleMatrix a) {
+        Entry entry = lookup(a);
+        Object cached = get(entry, INVERSE);
+        if(cached != null) return cached == NONE ? null : ((SimpleMatrix) cached).copy();
+
+        SimpleMatrix inverse = MatrixKernels.invert(a);
+        put(entry, INVERSE, inverse == null ? NONE : inverse, a.getNumElements());
+        return inverse == null ? null : inverse.copy();
+    }
+
+    /**
+     * Returns A^-1 (sparse if it's still mostly 0s), or null if A is singular
+     * */
+    Object invert(SparseMatrix a) {
+        Entry entry = lookup(a);
+        Object cached = get(entry, INVERSE);
+        if(cached != null) return cached == NONE ? null : copyOf(cached);
+
+        Object inverse = a.invert();
+        put(entry, INVERSE, inverse == null ? NONE : inverse, cellsOf(inverse));
+        return inverse == null ? null : copyOf(inverse);
+    }
+
+    SimpleMatrix pseudoInverse(SimpleMatrix a) {
+        Entry entry = lookup(a);
+        Object cached = get(entry, PSEUDO_INVERSE);
+        if(cached != null) return ((SimpleMatrix) cached).copy();
+
+        SimpleMatrix inverse = MatrixKernels.pseudoInverse(a);
+        put(entry, PSEUDO_INVERSE, inverse, inverse.getNumElements());
+        return inverse.copy();
+    }
+
+    /**
+     * Returns the eigendecomposition of A, or throws if it isn't diagonalizable
+     * */
+    MatrixPower.Eigen eigen(SimpleMatrix a) throws SyntaxException {
+        Entry entry = lookup(a);
+        Object cached = get(entry, EIGEN);
+        if(cached == NONE) throw new SyntaxException();
+        if(cached != null) return (MatrixPower.Eigen) cached;
+
+        MatrixPower.Eigen eigen;
+        try {
+            eigen = new MatrixPower.Eigen(a);
+        } catch(SyntaxException e) {
+            put(entry, EIGEN, NONE, 1);
+            throw e;
+        }
+        // V and V^-1
+        put(entry, EIGEN, eigen, 2 * a.getNumElements());
+        return eigen;
+    }
+
+    /**
+     * Returns A, A^2, A^4, ... A^(2^(count - 1)) for a square matrix A. These aren't copied,
+     * so they must not be changed or returned as is.
+     * */
+    SimpleMatrix[] squares(SimpleMatrix a, int count) {
+        Entry entry = lookup(a);
+        SimpleMatrix[] squares = new SimpleMatrix[count];
+        squares[0] = a;
+        int known = 1;
+        if(entry != null) {
+            synchronized(this) {
+                known = Math.max(1, Math.min(count, entry.mSquares.length));
+                if(known > 1) System.arraycopy(entry.mSquares, 1, squares, 1, known - 1);
+            }
+        }
+
+        for(int i = known; i < count; i++) {
+            squares[i] = MatrixKernels.multiply(squares[i - 1], squares[i - 1]);
+        }
+        if(count > known) {
+            putSquares(entry, squares, a.getNumElements());
+        }
+        return squares;
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mCells = 0;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the entry for the matrix, creating an empty one if needed, or null if the
+     * matrix is too small to cache.
+     * */
+    private synchronized Entry lookup(Object matrix) {
+        Object key;
+        long cells;
+        if(matrix instanceof SparseMatrix) {
+            SparseMatrix sparse = (SparseMatrix) matrix;
+            if((long) sparse.numRows() * sparse.numCols() < MIN_CELLS) return null;
+            key = sparse;
+            cells = sparse.nonZeros();
+        } else {
+            SimpleMatrix dense = (SimpleMatrix) matrix;
+            if(dense.getNumElements() < MIN_CELLS) return null;
+            key = new DenseKey(dense.numRows(), dense.numCols(), dense.getMatrix().data);
+            cells = dense.getNumElements();
+        }
+        if(cells > mMaxCells) return null;
+
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            if(key instanceof DenseKey) {
+                // The matrix could change after this, so keep a copy of it
+                key = ((DenseKey) key).copy();
+            }
+            entry = new Entry(key, cells);
+            mEntries.put(key, entry);
+            mCells += cells;
+            trim();
+        }
+        return entry;
+    }
+
+    private synchronized Object get(Entry entry, int slot) {
+        return entry == null ? null : entry.mSlots[slot];
+    }
+
+    private synchronized void put(Entry entry, int slot, Object value, long cells) {
+        // The entry may have been dropped while the value was computed
+        if(entry == null || mEntries.get(entry.mKey) != entry || entry.mSlots[slot] != null) return;
+        entry.mSlots[slot] = value;
+        entry.mCells += cells;
+        mCells += cells;
+        trim();
+    }
+
+    private synchronized void putSquares(Entry entry, SimpleMatrix[] squares, long cells) {
+        if(entry == null || mEntries.get(entry.mKey) != entry || squares.length <= entry.mSquares.length) return;
+        // The first square is A itself, which the key already holds
+        SimpleMatrix[] stored = squares.clone();
+        stored[0] = null;
+        long added = (squares.length - Math.max(1, entry.mSquares.length)) * cells;
+        entry.mSquares = stored;
+        entry.mCells += added;
+        mCells += added;
+        trim();
+    }
+
+    /**
+     * Drops the least recently used entries until the cache fits
+     * */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(mCells > mMaxCells && iterator.hasNext()) {
+            mCells -= iterator.next().mCells;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * SparseMatrix is immutable, so only a dense matrix needs copying
+     * */
+    private static Object copyOf(Object matrix) {
+        if(matrix instanceof SimpleMatrix) return ((SimpleMatrix) matrix).copy();
+        return matrix;
+    }
+
+    private static long cellsOf(Object matrix) {
+        if(matrix instanceof SparseMatrix) return ((SparseMatrix) matrix).nonZeros();
+        if(matrix instanceof SimpleMatrix) return ((SimpleMatrix) matrix).getNumElements();
+        return 1;
+    }
+
+    private static class Entry {
+        private final Object mKey;
+        private final Object[] mSlots = new Object[SLOTS];
+        // A^(2^i), with null in place of A itself
+        private SimpleMatrix[] mSquares = new SimpleMatrix[0];
+        private long mCells;
+
+        Entry(Object key, long cells) {
+            mKey = key;
+            mCells = cells;
+        }
+    }
+
+    /**
+     * The contents of a dense matrix. SparseMatrix compares its own contents, so it's used
+     * as a key directly.
+     * */
+    private static class DenseKey {
+        private final int mRows;
+        private final int mColumns;
+        private final double[] mData;
+        private final int mHash;
+
+        DenseKey(int rows, int columns, double[] data) {
+            mRows = rows;
+            mColumns = columns;
+            mData = data;
+
+            int hash = 31 * rows + columns;
+            for(int i = 0; i < rows * columns; i++) {
+                long bits = Double.doubleToLongBits(data[i]);
+                hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+            }
+            mHash = hash;
+        }
+
+        DenseKey copy() {
+            return new DenseKey(mRows, mColumns, Arrays.copyOf(mData, mRows * mColumns));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof DenseKey)) return false;
+            DenseKey other = (DenseKey) o;
+            if(mHash != other.mHash || mRows != other.mRows || mColumns != other.mColumns) return false;
+            for(int i = 0; i < mRows * mColumns; i++) {
+                if(Double.doubleToLongBits(mData[i]) != Double.doubleToLongBits(other.mData[i])) return false;
+            }
+            return true;
+        }
+    }
+}
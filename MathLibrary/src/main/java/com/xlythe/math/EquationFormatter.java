@@ -1,6 +1,27 @@
 package com.xlythe.math;
 
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.SuperscriptSpan;
+
 public class EquationFormatter {
+    // Same size as html's <small>
+    private static final float SUPERSCRIPT_SIZE = 0.8f;
+
+    // Reused by formatSpanned()
+    private final SpannableStringBuilder mText = new SpannableStringBuilder();
+    private final StringBuilder mInput = new StringBuilder();
+    private final StringBuilder mNumber = new StringBuilder();
+
+    // Where each open superscript started, most recent last
+    private int[] mSuperscriptStarts = new int[8];
+    private int mSmallStart;
+    private int mSubOpen;
+    private int mSubClosed;
+    private int mParenOpen;
+    private int mParenClosed;
+    private int mSelectionHandle;
 
     /**
      * Append parenthesis at the end of unclosed functions
@@ -127,4 +148,175 @@ public class EquationFormatter {
     public String format(Solver solver, String text) {
         return appendParenthesis(insertSupScripts(addComas(solver, text)));
     }
+
+    /**
+     * Formats an equation for display in a single pass. Digits are grouped, exponents are
+     * raised, and (if closeParenthesis) unclosed parenthesis are closed, just like
+     * format() does. Instead of html, the spans are written directly into the text.
+     *
+     * selectionHandle is the cursor in the unformatted input (or -1 if the input already
+     * contains BaseModule.SELECTION_HANDLE, or there's no cursor). Afterwards,
+     * getSelectionHandle() returns where the cursor ended up in the formatted text.
+     *
+     * The returned text is reused by the next call, so copy it if you need to keep it.
+     * */
+    public Spanned formatSpanned(Solver solver, CharSequence input, int selectionHandle,
+                                 boolean closeParenthesis) {
+        mText.clear();
+        mText.clearSpans();
+        mSelectionHandle = selectionHandle;
+        mSubOpen = 0;
+        mSubClosed = 0;
+        mParenOpen = 0;
+        mParenClosed = 0;
+
+        // Mark the cursor, so it travels with the digits around it while grouping
+        if(selectionHandle >= 0 && selectionHandle <= input.length()) {
+            mInput.setLength(0);
+            mInput.append(input, 0, selectionHandle)
+                    .append(BaseModule.SELECTION_HANDLE)
+                    .append(input, selectionHandle, input.length());
+            input = mInput;
+        }
+
+        // Without a solver, there's no base to group digits by
+        BaseModule baseModule = solver == null ? null : solver.getBaseModule();
+        Base base = baseModule == null ? null : baseModule.getBase();
+        NumberLexer lexer = new NumberLexer(input, true);
+
+        // The last real character. A ^ there stays visible instead of being hidden.
+        int last = input.length() - 1;
+        while(last >= 0 && input.charAt(last) == BaseModule.SELECTION_HANDLE) {
+            last--;
+        }
+
+        int unclosedParen = 0;
+        char prev = 0;
+        while(lexer.next()) {
+            CharSequence token = input;
+            int start = lexer.getStart();
+            int end = lexer.getEnd();
+            if(lexer.isNumber() && baseModule != null) {
+                mNumber.setLength(0);
+                baseModule.groupDigits(input.subSequence(start, end), base, mNumber);
+                token = mNumber;
+                start = 0;
+                end = mNumber.length();
+            }
+
+            for(int i = start; i < end; i++) {
+                char c = token.charAt(i);
+                if(c == BaseModule.SELECTION_HANDLE) {
+                    mSelectionHandle = mText.length();
+                    continue;
+                }
+                if(c == Constants.LEFT_PAREN) unclosedParen++;
+                else if(c == Constants.RIGHT_PAREN) unclosedParen--;
+
+                boolean isLast = !lexer.isNumber() && i == last;
+                appendSuperscripted(c, prev, isLast, lexer);
+                prev = c;
+            }
+        }
+        closeSuperscripts();
+
+        if(closeParenthesis) {
+            for(int i = 0; i < unclosedParen; i++) {
+                mText.append(Constants.RIGHT_PAREN);
+            }
+        }
+        return mText;
+    }
+
+    /**
+     * Where the selection handle ended up after the last call to formatSpanned()
+     * */
+    public int getSelectionHandle() {
+        return mSelectionHandle;
+    }
+
+    /**
+     * The same rules as insertSupScripts(), one character at a time
+     * */
+    private void appendSuperscripted(char c, char prev, boolean isLast, NumberLexer lexer) {
+        if(c == Constants.POWER) {
+            openSuperscript();
+            if(isLast) {
+                mText.append(c);
+                closeSuperscript();
+            } else {
+                mText.append(Constants.POWER_PLACEHOLDER);
+            }
+            return;
+        }
+
+        if(mSubOpen > mSubClosed) {
+            if(mParenOpen == mParenClosed) {
+                boolean isDigit = lexer.isNumber(c) && c != BaseModule.SELECTION_HANDLE;
+                boolean prevIsDigit = lexer.isNumber(prev) && prev != BaseModule.SELECTION_HANDLE;
+                // Decide when to break the superscript started by ^
+                if(c == Constants.PLUS // 2^3+1
+                        || (c == Constants.MINUS && prev != Constants.POWER) // 2^3-1
+                        || c == Constants.MUL // 2^3*1
+                        || c == Constants.DIV // 2^3/1
+                        || c == Constants.EQUAL // X^3=1
+                        || (c == Constants.LEFT_PAREN && (prevIsDigit || prev == Constants.RIGHT_PAREN)) // 2^3(1)
+                        // or
+                        // 2^(3-1)(0)
+                        || (isDigit && prev == Constants.RIGHT_PAREN) // 2^(3)1
+                        || (!isDigit && prevIsDigit) && c != Constants.DECIMAL_POINT) { // 2^3log(1)
+                    closeSuperscripts();
+                    if(c == Constants.LEFT_PAREN) {
+                        mParenOpen--;
+                    } else if(c == Constants.RIGHT_PAREN) {
+                        mParenClosed--;
+                    }
+                }
+            }
+            if(c == Constants.LEFT_PAREN) {
+                mParenOpen++;
+            } else if(c == Constants.RIGHT_PAREN) {
+                mParenClosed++;
+            }
+        }
+        mText.append(c);
+    }
+
+    private void openSuperscript() {
+        if(mSubOpen == 0) mSmallStart = mText.length();
+        int open = mSubOpen - mSubClosed;
+        if(open == mSuperscriptStarts.length) {
+            int[] starts = new int[open * 2];
+            System.arraycopy(mSuperscriptStarts, 0, starts, 0, open);
+            mSuperscriptStarts = starts;
+        }
+        mSuperscriptStarts[open] = mText.length();
+        mSubOpen++;
+    }
+
+    private void closeSuperscript() {
+        int end = mText.length();
+        if(mSubClosed == 0) {
+            mText.setSpan(new RelativeSizeSpan(SUPERSCRIPT_SIZE), mSmallStart, end,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        int start = mSuperscriptStarts[mSubOpen - mSubClosed - 1];
+        if(start != end) {
+            mText.setSpan(new SuperscriptSpan(), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        mSubClosed++;
+    }
+
+    /**
+     * Closes every open superscript and starts over
+     * */
+    private void closeSuperscripts() {
+        while(mSubOpen > mSubClosed) {
+            closeSuperscript();
+        }
+        mSubOpen = 0;
+        mSubClosed = 0;
+        mParenOpen = 0;
+        mParenClosed = 0;
+    }
 }
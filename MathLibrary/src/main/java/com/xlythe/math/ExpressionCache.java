@@ -0,0 +1,69 @@
+package com.xlythe.math;
+
+import org.javia.arity.Function;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of compiled expressions.
+ *
+ * Keys are the decimal, English (delocalized) equations handed to arity, so the same
+ * equation typed in hex or in another locale still maps onto the same entry.
+ */
+class ExpressionCache {
+    private final LinkedHashMap<String, Function> mEntries;
+    private int mHits;
+    private int mMisses;
+
+    // The Constants generation the entries were compiled against
+    private int mGeneration = Constants.getGeneration();
+
+    ExpressionCache(final int maxSize) {
+        mEntries = new LinkedHashMap<String, Function>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Function> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled function for the equation, or null if it hasn't been seen yet
+     * */
+    synchronized Function get(String equation) {
+        if(mGeneration != Constants.getGeneration()) {
+            // The locale changed, so decimal points and separators may mean something else now
+            mEntries.clear();
+            mGeneration = Constants.getGeneration();
+        }
+
+        Function function = mEntries.get(equation);
+        if(function == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return function;
+    }
+
+    synchronized void put(String equation, Function function) {
+        mEntries.put(equation, function);
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+}
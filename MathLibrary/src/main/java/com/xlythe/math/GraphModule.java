@@ -2,21 +2,45 @@ package com.xlythe.math;
 
 import android.os.AsyncTask;
 
+import org.javia.arity.ContextFunction;
+import org.javia.arity.Function;
 import org.javia.arity.SyntaxException;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class GraphModule extends Module {
     private static final String X = "X";
     private static final String Y = "Y";
+    // Without a resolution, assume a pixel is this many grid lines wide
+    private static final float DEFAULT_PIXEL = 0.01f;
+    // Curves are first sampled every this many pixels, then refined where they bend
+    private static final int COARSE_PIXELS = 16;
+    // Refine until the curve is this close (in pixels) to a straight line...
+    private static final float TOLERANCE_PIXELS = 0.5f;
+    // ...or the samples are this close (in pixels)
+    private static final float MIN_SAMPLE_PIXELS = 0.25f;
+    // A jump of this many pixels that doesn't close as the samples get closer is a discontinuity
+    private static final float JUMP_PIXELS = 4;
+    // How many times to halve a jump while checking if it closes
+    private static final int JUMP_STEPS = 10;
+    // Implicit equations (ie. x^2+y^2=25) are traced on a grid this many pixels apart
+    private static final int CONTOUR_PIXELS = 4;
+    // Graphs are drawn in parallel, one per core. Their implicit scans are split further on Panels.
+    private static ThreadPoolExecutor sExecutor;
     private float mMinY;
     private float mMaxY;
     private float mMinX;
     private float mMaxX;
     private float mZoomLevel = 1f;
+    private int mWidth;
+    private int mHeight;
 
     public GraphModule(Solver solver) {
         super(solver);
@@ -36,6 +60,15 @@ public class GraphModule extends Module {
         mZoomLevel = level;
     }
 
+    /**
+     * How many pixels the domain and range are drawn across. Curves are sampled to the pixel,
+     * so set this whenever the graph is resized.
+     * */
+    public void setResolution(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
     /**
      * Given a function, updateGraph will attempt to build a list of points that can be graphed.
      * */
@@ -48,11 +81,37 @@ public class GraphModule extends Module {
             return null;
         }
 
-        GraphTask newTask = new GraphTask(getSolver(), mMinY, mMaxY, mMinX, mMaxX, mZoomLevel, l);
-        newTask.execute(text);
+        GraphTask newTask = new GraphTask(getSolver(), mMinY, mMaxY, mMinX, mMaxX, mZoomLevel,
+                mWidth, mHeight, l);
+        newTask.executeOnExecutor(getExecutor(), text);
         return newTask;
     }
 
+    /**
+     * AsyncTask.execute() runs every task one after another, so a screen of graphs (or the
+     * history) would wait on each other. This runs one graph per core instead.
+     *
+     * It's kept apart from Panels because a graph waits on its panels. Sharing one pool, every
+     * thread could end up waiting on panels queued behind it.
+     * */
+    private static synchronized Executor getExecutor() {
+        if(sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(Panels.THREADS, Panels.THREADS, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private int mCount;
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "GraphModule-" + mCount++);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
     class GraphTask extends AsyncTask<String, String, List<Point>> {
         private final Solver mSolver;
         private final OnGraphUpdatedListener mListener;
@@ -61,9 +120,20 @@ public class GraphModule extends Module {
         private final float mMinX;
         private final float mMaxX;
         private final float mZoomLevel;
+        // The size of a pixel, in graph units
+        private final float mPixelWidth;
+        private final float mPixelHeight;
+        // The curve being sampled by sample(), and the points so far
+        private Function mFunction;
+        private List<Point> mSeries;
+        private float mTPixel;
+        private float mValuePixel;
+        private float mMinValue;
+        private float mMaxValue;
+        private boolean mVertical;
 
         public GraphTask(Solver solver, float minY, float maxY, float minX, float maxX,
-                         float zoomLevel, OnGraphUpdatedListener l) {
+                         float zoomLevel, int width, int height, OnGraphUpdatedListener l) {
             mSolver = solver;
             mListener = l;
             mMinY = minY;
@@ -71,6 +141,8 @@ public class GraphModule extends Module {
             mMinX = minX;
             mMaxX = maxX;
             mZoomLevel = zoomLevel;
+            mPixelWidth = width > 0 ? (maxX - minX) / width : DEFAULT_PIXEL * zoomLevel;
+            mPixelHeight = height > 0 ? (maxY - minY) / height : DEFAULT_PIXEL * zoomLevel;
         }
 
         @Override
@@ -95,140 +167,216 @@ public class GraphModule extends Module {
         }
 
         public List<Point> graph(String equation) {
-            final LinkedList<Point> series = new LinkedList<Point>();
-            mSolver.pushFrame();
-
-            final float delta = 0.1f * mZoomLevel;
-            for(float x = mMinX; x <= mMaxX; x += delta) {
-                if(isCancelled()) {
-                    return null;
-                }
-
-                try {
-                    mSolver.define(X, x);
-                    float y = (float) mSolver.eval(equation);
-                    series.add(new Point(x, y));
-                } catch(SyntaxException e) {}
+            Function function = mSolver.compile(equation, X);
+            if(function == null) {
+                return Collections.emptyList();
             }
-            mSolver.popFrame();
-
-            return Collections.unmodifiableList(series);
+            return sample(function, mMinX, mMaxX, mPixelWidth, mMinY, mMaxY, mPixelHeight, false);
         }
 
         public List<Point> graph(String leftEquation, String rightEquation) {
-            List<Point> series = new LinkedList<>();
-            mSolver.pushFrame();
-
-            final float delta = 0.1f * mZoomLevel;
             if(leftEquation.equals(Y) && !rightEquation.contains(Y)) {
-                for(float x = mMinX; x <= mMaxX; x += delta) {
-                    if(isCancelled()) {
-                        return null;
-                    }
-
-                    try {
-                        mSolver.define(X, x);
-                        float y = (float) mSolver.eval(rightEquation);
-                        series.add(new Point(x, y));
-                    } catch(SyntaxException e) {}
+                Function function = mSolver.compile(rightEquation, X);
+                if(function == null) {
+                    return Collections.emptyList();
                 }
+                return sample(function, mMinX, mMaxX, mPixelWidth, mMinY, mMaxY, mPixelHeight, false);
             } else if(leftEquation.equals(X) && !rightEquation.contains(X)) {
-                for(float y = mMinY; y <= mMaxY; y += delta) {
-                    if(isCancelled()) {
-                        return null;
-                    }
-
-                    try {
-                        mSolver.define(Y, y);
-                        float x = (float) mSolver.eval(rightEquation);
-                        series.add(new Point(x, y));
-                    } catch(SyntaxException e) {}
+                Function function = mSolver.compile(rightEquation, Y);
+                if(function == null) {
+                    return Collections.emptyList();
                 }
+                return sample(function, mMinY, mMaxY, mPixelHeight, mMinX, mMaxX, mPixelWidth, true);
             } else if(rightEquation.equals(Y) && !leftEquation.contains(Y)) {
-                for(float x = mMinX; x <= mMaxX; x += delta) {
-                    if(isCancelled()) {
-                        return null;
-                    }
-
-                    try {
-                        mSolver.define(X, x);
-                        float y = (float) mSolver.eval(leftEquation);
-                        series.add(new Point(x, y));
-                    } catch(SyntaxException e) {}
+                Function function = mSolver.compile(leftEquation, X);
+                if(function == null) {
+                    return Collections.emptyList();
                 }
+                return sample(function, mMinX, mMaxX, mPixelWidth, mMinY, mMaxY, mPixelHeight, false);
             } else if(rightEquation.equals(X) && !leftEquation.contains(X)) {
-                for(float y = mMinY; y <= mMaxY; y += delta) {
-                    if(isCancelled()) {
-                        return null;
+                Function function = mSolver.compile(leftEquation, Y);
+                if(function == null) {
+                    return Collections.emptyList();
+                }
+                return sample(function, mMinY, mMaxY, mPixelHeight, mMinX, mMaxX, mPixelWidth, true);
+            } else {
+                final Function left = mSolver.compile(leftEquation, X, Y);
+                final Function right = mSolver.compile(rightEquation, X, Y);
+                if(left == null || right == null) {
+                    return Collections.emptyList();
+                }
+                // Called from every core. eval() uses the calling thread's evaluation context.
+                List<Point> series = MarchingSquares.trace(new MarchingSquares.Field() {
+                    @Override
+                    public double eval(double x, double y) {
+                        return GraphTask.this.eval(left, x, y) - GraphTask.this.eval(right, x, y);
                     }
+                }, bounds(leftEquation, rightEquation),
+                        mMinX, mMaxX, mMinY, mMaxY, CONTOUR_PIXELS * Math.max(mPixelWidth, mPixelHeight));
+                if(isCancelled()) {
+                    return null;
+                }
+                return Collections.unmodifiableList(series);
+            }
+        }
 
-                    try {
-                        mSolver.define(Y, y);
-                        float x = (float) mSolver.eval(leftEquation);
-                        series.add(new Point(x, y));
-                    } catch(SyntaxException e) {}
+        /**
+         * Bounds left - right over a rectangle with interval arithmetic, so the parts of the
+         * graph the curve can't pass through are skipped. Returns null if either side uses
+         * something IntervalExpression doesn't support.
+         * */
+        private MarchingSquares.Bounds bounds(String leftEquation, String rightEquation) {
+            final IntervalExpression left = IntervalExpression.parse(leftEquation);
+            final IntervalExpression right = IntervalExpression.parse(rightEquation);
+            if(left == null || right == null) {
+                return null;
+            }
+            return new MarchingSquares.Bounds() {
+                @Override
+                public boolean mayBeZero(double minX, double maxX, double minY, double maxY) {
+                    IntervalExpression.Interval x = new IntervalExpression.Interval(minX, maxX);
+                    IntervalExpression.Interval y = new IntervalExpression.Interval(minY, maxY);
+                    IntervalExpression.Interval a = left.evaluate(x, y);
+                    IntervalExpression.Interval b = right.evaluate(x, y);
+                    // No value anywhere in here, so nothing to draw
+                    if(a == null || b == null) return false;
+                    return new IntervalExpression.Interval(a.mMin - b.mMax, a.mMax - b.mMin).mayBeZero();
                 }
-            } else {
-                for(float x = mMinX; x <= mMaxX; x += 0.1f * mZoomLevel) {
-                    for(float y = mMaxY; y >= mMinY; y -= 0.1f * mZoomLevel) {
-                        if(isCancelled()) {
-                            return null;
-                        }
+            };
+        }
 
-                        try {
-                            mSolver.define(X, x);
-                            mSolver.define(Y, y);
-                            float leftSide = (float) mSolver.eval(leftEquation);
-                            float rightSide = (float) mSolver.eval(rightEquation);
-
-                            // Should be close to 0 if they're similar
-                            float condensedResult = Math.abs(leftSide - rightSide);
-                            if (condensedResult < 0.02f) {
-                                series.add(new Point(x, y));
-                            }
-                        } catch(SyntaxException e) {}
-                    }
+        /**
+         * Samples value = f(t) for t from min to max. Starts with a grid every few pixels
+         * (aligned to pixels, so panning doesn't shift it) and splits each interval in half
+         * wherever its middle is more than a fraction of a pixel off a straight line. Flat
+         * stretches cost a few evaluations, and bends, spikes and oscillations get as many as
+         * they need, down to a fraction of a pixel.
+         *
+         * Discontinuities (eg. tan at pi/2) and the edges of the domain (eg. sqrt at 0) are
+         * marked with a NaN point, so the graph isn't drawn across them.
+         *
+         * tPixel and valuePixel are the size of a pixel along t and along the value, and only
+         * values from minValue to maxValue are on screen. When vertical, the points are
+         * (f(t), t) instead of (t, f(t)).
+         * */
+        private List<Point> sample(Function function, float min, float max, float tPixel,
+                                   float minValue, float maxValue, float valuePixel, boolean vertical) {
+            mFunction = function;
+            mSeries = new ArrayList<>();
+            mTPixel = tPixel;
+            mMinValue = minValue;
+            mMaxValue = maxValue;
+            mValuePixel = valuePixel;
+            mVertical = vertical;
+
+            double step = COARSE_PIXELS * tPixel;
+            double start = Math.floor(min / step) * step;
+            int intervals = (int) Math.ceil((max - start) / step);
+
+            double t0 = start;
+            double v0 = eval(function, t0);
+            add(t0, v0);
+            for(int i = 1; i <= intervals; i++) {
+                if(isCancelled()) {
+                    return null;
                 }
 
-                series = sort(series);
+                // Multiplied instead of added up, so rounding doesn't drift across the domain
+                double t1 = start + i * step;
+                double v1 = eval(function, t1);
+                subdivide(t0, v0, t1, v1);
+                t0 = t1;
+                v0 = v1;
+            }
+            return Collections.unmodifiableList(mSeries);
+        }
+
+        /**
+         * Adds the points after t0, up to and including t1
+         * */
+        private void subdivide(double t0, double v0, double t1, double v1) {
+            boolean finite0 = isFinite(v0);
+            boolean finite1 = isFinite(v1);
+            if(!finite0 && !finite1) {
+                add(t1, v1);
+                return;
             }
 
-            mSolver.popFrame();
+            if(t1 - t0 <= MIN_SAMPLE_PIXELS * mTPixel) {
+                if(finite0 && finite1 && isJump(t0, v0, t1, v1)) {
+                    add((t0 + t1) / 2, Double.NaN);
+                }
+                add(t1, v1);
+                return;
+            }
 
-            return Collections.unmodifiableList(series);
+            double t = (t0 + t1) / 2;
+            double v = eval(mFunction, t);
+            if(finite0 && finite1 && isFinite(v)) {
+                boolean straight = Math.abs(v - (v0 + v1) / 2) <= TOLERANCE_PIXELS * mValuePixel;
+                boolean offScreen = (v0 > mMaxValue && v > mMaxValue && v1 > mMaxValue)
+                        || (v0 < mMinValue && v < mMinValue && v1 < mMinValue);
+                if(straight || offScreen) {
+                    add(t, v);
+                    add(t1, v1);
+                    return;
+                }
+            }
+            subdivide(t0, v0, t, v);
+            subdivide(t, v, t1, v1);
         }
 
-        private List<Point> sort(List<Point> data) {
-            List<Point> sorted = new ArrayList<>(data.size());
-            Point key = null;
-            while(!data.isEmpty()) {
-                if(key == null) {
-                    key = data.get(0);
-                    data.remove(0);
-                    sorted.add(key);
+        /**
+         * Two samples less than a pixel apart that are still far apart in value are either on a
+         * very steep curve or on either side of a discontinuity. Keep halving the interval that
+         * holds most of the difference: a curve's difference shrinks, a discontinuity's doesn't.
+         * */
+        private boolean isJump(double t0, double v0, double t1, double v1) {
+            double jump = Math.abs(v1 - v0);
+            if(jump <= JUMP_PIXELS * mValuePixel) return false;
+
+            for(int i = 0; i < JUMP_STEPS; i++) {
+                double t = (t0 + t1) / 2;
+                if(t == t0 || t == t1) break;
+                double v = eval(mFunction, t);
+                if(!isFinite(v)) return true;
+                if(Math.abs(v - v0) > Math.abs(v1 - v)) {
+                    t1 = t;
+                    v1 = v;
+                } else {
+                    t0 = t;
+                    v0 = v;
                 }
-                key = findClosestPoint(key, data);
-                data.remove(key);
-                sorted.add(key);
+                if(Math.abs(v1 - v0) < jump / 2) return false;
             }
-            return sorted;
+            return true;
         }
 
-        private Point findClosestPoint(Point key, List<Point> data) {
-            Point closestPoint = null;
-            for(Point p : data) {
-                if(closestPoint == null) closestPoint = p;
-                if(getDistance(key, p) < getDistance(key, closestPoint)) closestPoint = p;
+        private void add(double t, double value) {
+            // Only one NaN is needed to split the graph
+            if(!isFinite(value) && !mSeries.isEmpty()) {
+                Point last = mSeries.get(mSeries.size() - 1);
+                if(!isFinite(mVertical ? last.getX() : last.getY())) return;
             }
-            return closestPoint;
+            mSeries.add(mVertical ? new Point((float) value, (float) t) : new Point((float) t, (float) value));
+        }
+
+        private boolean isFinite(double value) {
+            return !Double.isNaN(value) && !Double.isInfinite(value);
         }
 
-        private double getDistance(Point a, Point b) {
-            return Math.sqrt(square(a.getX() - b.getX()) + square(a.getY() - b.getY()));
+        private double eval(Function function, double value) {
+            if(function instanceof ContextFunction) {
+                return ((ContextFunction) function).eval(value, mSolver.getEvalContext());
+            }
+            return function.eval(value);
         }
 
-        private double square(double val) {
-            return val * val;
+        private double eval(Function function, double x, double y) {
+            if(function instanceof ContextFunction) {
+                return ((ContextFunction) function).eval(x, y, mSolver.getEvalContext());
+            }
+            return function.eval(x, y);
         }
 
         @Override
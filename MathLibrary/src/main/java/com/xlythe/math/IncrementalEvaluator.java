@@ -0,0 +1,283 @@
+package com.xlythe.math;
+
+import org.javia.arity.Complex;
+import org.javia.arity.ContextFunction;
+import org.javia.arity.EvalContext;
+import org.javia.arity.Function;
+import org.javia.arity.Symbols;
+import org.javia.arity.SyntaxException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evaluates an equation while remembering the pieces of the previous one, so that typing at
+ * the end of a long equation doesn't parse and evaluate everything before it again.
+ *
+ * The equation is split into top level terms at + and -, which are the loosest binding
+ * operators arity has. ie. 1+2×3−sin(4) becomes "1", "2×3" and "sin(4)". The running sum of
+ * the terms is kept, so when only the end of the equation changes, the terms before the edit
+ * are summed already and only the edited ones are evaluated. Terms are added left to right,
+ * just like arity would, so the result is identical.
+ *
+ * Inside a term, the contents of every closed parenthesis (and so every finished function
+ * call) are evaluated on their own and remembered. The term is then compiled with those
+ * replaced by their values. ie. 2×sin(1+2+3) is compiled as 2×sin(6.0)
+ *
+ * Anything that can't be split safely (percentages, which depend on the term before them,
+ * definitions, unbalanced parenthesis) makes evaluate() return null, and the caller should
+ * fall back to evaluating the whole equation.
+ *
+ * Not thread safe. Solver keeps one per thread.
+ */
+class IncrementalEvaluator {
+    // How many parenthesis contents to remember
+    private static final int MAX_GROUPS = 16;
+
+    private final Symbols mSymbols;
+    private final EvalContext mEvalContext;
+
+    // The previous equation, where each of its terms ended, and the sum up to each term
+    private String mInput = "";
+    private int mTermCount;
+    private int[] mTermEnds = new int[8];
+    private Complex[] mSums = new Complex[8];
+
+    private final LinkedHashMap<String, Complex> mGroups =
+            new LinkedHashMap<String, Complex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Complex> eldest) {
+                    return size() > MAX_GROUPS;
+                }
+            };
+
+    // Reset whenever the Solver or Constants change what an equation means
+    private int mCacheGeneration;
+    private int mConstantsGeneration = Constants.getGeneration();
+
+    IncrementalEvaluator(Symbols symbols, EvalContext evalContext) {
+        mSymbols = symbols;
+        mEvalContext = evalContext;
+    }
+
+    /**
+     * Evaluates a decimal, English equation. Returns null if the equation has to be solved
+     * in one piece instead.
+     *
+     * @param cacheGeneration bumped by the caller whenever previous values become invalid
+     *                        (eg. switching between radians and degrees)
+     * */
+    Complex evaluate(String input, int cacheGeneration) throws SyntaxException {
+        if(mCacheGeneration != cacheGeneration || mConstantsGeneration != Constants.getGeneration()) {
+            clear();
+            mCacheGeneration = cacheGeneration;
+            mConstantsGeneration = Constants.getGeneration();
+        }
+
+        int[] ends = split(input);
+        if(ends == null) {
+            return null;
+        }
+        int termCount = ends.length;
+        if(termCount == 1 && input.indexOf(Constants.LEFT_PAREN) == -1) {
+            // Nothing to reuse
+            return null;
+        }
+
+        // Terms that end (and are followed by the same operator) before the edit are unchanged
+        int prefix = commonPrefix(mInput, input);
+        int reused = 0;
+        while(reused < mTermCount - 1 && reused < termCount - 1 && mTermEnds[reused] < prefix) {
+            reused++;
+        }
+
+        Complex[] sums = mSums.length >= termCount ? mSums : new Complex[termCount];
+        System.arraycopy(mSums, 0, sums, 0, reused);
+        try {
+            for(int i = reused; i < termCount; i++) {
+                int start = i == 0 ? 0 : ends[i - 1] + 1;
+                Complex value = evaluateTerm(input.substring(start, ends[i]));
+                if(i == 0) {
+                    sums[i] = value;
+                } else if(input.charAt(start - 1) == Constants.PLUS) {
+                    sums[i] = new Complex(sums[i - 1]).add(value);
+                } else {
+                    sums[i] = new Complex(sums[i - 1]).sub(value);
+                }
+            }
+        } catch(SyntaxException e) {
+            // Let the whole equation report the error
+            clear();
+            return null;
+        }
+
+        mInput = input;
+        mTermCount = termCount;
+        mTermEnds = ends;
+        mSums = sums;
+        return new Complex(sums[termCount - 1]);
+    }
+
+    void clear() {
+        mInput = "";
+        mTermCount = 0;
+        mGroups.clear();
+    }
+
+    /**
+     * Returns the index after each top level term, or null if the equation can't be split
+     * */
+    private static int[] split(String input) {
+        int count = 1;
+        int[] ends = new int[8];
+        int depth = 0;
+        for(int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if(c == Constants.LEFT_PAREN) {
+                depth++;
+            } else if(c == Constants.RIGHT_PAREN) {
+                if(--depth < 0) return null;
+            } else if(c == '%' || c == '=' || (c == ',' && depth == 0)) {
+                return null;
+            } else if(depth == 0 && isAdditive(c) && isBinary(input, i)) {
+                if(count == ends.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(ends, 0, grown, 0, count);
+                    ends = grown;
+                }
+                ends[count - 1] = i;
+                count++;
+            }
+        }
+
+        // A trailing operator leaves an empty term
+        int start = count == 1 ? 0 : ends[count - 2] + 1;
+        if(input.substring(start).trim().isEmpty()) {
+            return null;
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(ends, 0, result, 0, count - 1);
+        result[count - 1] = input.length();
+        return result;
+    }
+
+    private static boolean isAdditive(char c) {
+        return c == Constants.PLUS || c == Constants.MINUS || c == '-';
+    }
+
+    /**
+     * True if the + or - at the index subtracts from something, false if it's a sign
+     * (eg. 2×−3, 2^−3 or 1E−5).
+     * */
+    private static boolean isBinary(String input, int index) {
+        if(index == 0) {
+            return false;
+        }
+        char previous = input.charAt(index - 1);
+        if(previous == 'E' || previous == 'e') {
+            // 1E−5 is a number, but πe−3 is a subtraction
+            return index < 2 || !isNumberPart(input.charAt(index - 2));
+        }
+        return Character.isLetterOrDigit(previous)
+                || previous == Constants.RIGHT_PAREN
+                || previous == '!'
+                || previous == '.'
+                || previous == Constants.INFINITY_UNICODE.charAt(0);
+    }
+
+    private static boolean isNumberPart(char c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while(i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Evaluates a term, replacing the contents of its closed parenthesis with their values
+     * */
+    private Complex evaluateTerm(String term) throws SyntaxException {
+        StringBuilder substituted = null;
+        int copied = 0;
+        int depth = 0;
+        int groupStart = 0;
+        for(int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if(c == Constants.LEFT_PAREN) {
+                if(depth++ == 0) groupStart = i + 1;
+            } else if(c == Constants.RIGHT_PAREN && --depth == 0) {
+                String literal = toLiteral(evaluateGroup(term.substring(groupStart, i)));
+                if(literal != null) {
+                    if(substituted == null) {
+                        substituted = new StringBuilder(term.length());
+                    }
+                    substituted.append(term, copied, groupStart).append(literal);
+                    copied = i;
+                }
+            }
+        }
+
+        if(substituted != null) {
+            term = substituted.append(term, copied, term.length()).toString();
+        }
+        return compile(term);
+    }
+
+    /**
+     * Returns the value of what's inside a parenthesis, or null if it has no value by itself
+     * (eg. the arguments of a function that takes more than one)
+     * */
+    private Complex evaluateGroup(String group) {
+        if(mGroups.containsKey(group)) {
+            return mGroups.get(group);
+        }
+
+        Complex value;
+        try {
+            value = compile(group);
+        } catch(SyntaxException e) {
+            value = null;
+        }
+        mGroups.put(group, value);
+        return value;
+    }
+
+    /**
+     * Writes a value so that arity reads back exactly the same number
+     * */
+    private static String toLiteral(Complex value) {
+        if(value == null || value.im != 0 || Double.isNaN(value.re) || Double.isInfinite(value.re)) {
+            return null;
+        }
+        // A negative literal is read as a negated number, which also negates the imaginary 0.
+        // The sign of that 0 matters (ln(−1) is πi, but ln of (−1, −0) is −πi), so it has to match.
+        if(isNegative(value.re) != isNegative(value.im)) {
+            return null;
+        }
+        return Double.toString(value.re);
+    }
+
+    private static boolean isNegative(double value) {
+        return Double.doubleToRawLongBits(value) < 0;
+    }
+
+    private Complex compile(String input) throws SyntaxException {
+        if(Symbols.isDefinition(input)) {
+            throw new SyntaxException();
+        }
+        Function function = mSymbols.compile(input);
+        if(function.arity() != 0) {
+            throw new SyntaxException();
+        }
+        if(function instanceof ContextFunction) {
+            return new Complex(((ContextFunction) function).eval(new Complex[0], mEvalContext));
+        }
+        return new Complex(function.evalComplex());
+    }
+}
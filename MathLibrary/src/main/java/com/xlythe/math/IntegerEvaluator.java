@@ -0,0 +1,245 @@
+package com.xlythe.math;
+
+/**
+ * Solves an equation of whole numbers in programmer mode, directly on BitIntegers.
+ *
+ * From lowest to highest precedence:
+ * or, xor, and, shifts (shl shr rol ror), + -, ×, unary - and not, ^
+ *
+ * Every intermediate result is wrapped to the word size, like a register would.
+ * Anything else (decimals, division, functions, variables) isn't supported, and evaluate()
+ * returns null so that the caller can fall back to arity.
+ */
+class IntegerEvaluator {
+    // Stops arbitrary sized powers from eating all the memory. arity will return Infinity instead.
+    private static final int MAX_BITS = 1 << 16;
+
+    private final String mInput;
+    private final int mRadix;
+    private final WordSize mWordSize;
+    private final boolean mSigned;
+    private int mPosition;
+
+    IntegerEvaluator(String input, int radix, WordSize wordSize, boolean signed) {
+        mInput = input;
+        mRadix = radix;
+        mWordSize = wordSize;
+        mSigned = signed;
+    }
+
+    /**
+     * Returns the result, or null if the equation isn't a whole number equation
+     * */
+    BitInteger evaluate() {
+        mPosition = 0;
+        BitInteger result = parseOr();
+        skipWhitespace();
+        if(result == null || mPosition != mInput.length()) {
+            return null;
+        }
+        return result;
+    }
+
+    // Every parse method returns null as soon as it finds something it can't solve, and the
+    // null is passed up to evaluate()
+
+    private BitInteger parseOr() {
+        BitInteger result = parseXor();
+        while(result != null && (consume("or") || consume('|'))) {
+            BitInteger operand = parseXor();
+            if(operand == null) return null;
+            result = wrap(result.or(operand));
+        }
+        return result;
+    }
+
+    private BitInteger parseXor() {
+        BitInteger result = parseAnd();
+        while(result != null && consume("xor")) {
+            BitInteger operand = parseAnd();
+            if(operand == null) return null;
+            result = wrap(result.xor(operand));
+        }
+        return result;
+    }
+
+    private BitInteger parseAnd() {
+        BitInteger result = parseShift();
+        while(result != null && (consume("and") || consume('&'))) {
+            BitInteger operand = parseShift();
+            if(operand == null) return null;
+            result = wrap(result.and(operand));
+        }
+        return result;
+    }
+
+    private BitInteger parseShift() {
+        BitInteger result = parseSum();
+        while(result != null) {
+            if(consume("shl") || consume("<<")) {
+                int distance = toDistance(parseSum());
+                if(distance == -1) return null;
+                result = wrap(result.shiftLeft(distance));
+            } else if(consume("shr") || consume(">>")) {
+                int distance = toDistance(parseSum());
+                if(distance == -1) return null;
+                result = wrap(result.shiftRight(distance));
+            } else if(consume("rol")) {
+                int distance = toDistance(parseSum());
+                // Rotating needs to know where the top bit is
+                if(distance == -1 || mWordSize.isArbitrary()) return null;
+                result = result.rotateLeft(distance, mWordSize, mSigned);
+            } else if(consume("ror")) {
+                int distance = toDistance(parseSum());
+                if(distance == -1 || mWordSize.isArbitrary()) return null;
+                result = result.rotateRight(distance, mWordSize, mSigned);
+            } else {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private BitInteger parseSum() {
+        BitInteger result = parseProduct();
+        while(result != null) {
+            if(consume(Constants.PLUS)) {
+                BitInteger operand = parseProduct();
+                if(operand == null) return null;
+                result = wrap(result.add(operand));
+            } else if(consume(Constants.MINUS) || consume('-')) {
+                BitInteger operand = parseProduct();
+                if(operand == null) return null;
+                result = wrap(result.subtract(operand));
+            } else {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private BitInteger parseProduct() {
+        BitInteger result = parseUnary();
+        while(result != null && (consume(Constants.MUL) || consume('*'))) {
+            BitInteger operand = parseUnary();
+            if(operand == null) return null;
+            result = wrap(result.multiply(operand));
+        }
+        return result;
+    }
+
+    private BitInteger parseUnary() {
+        if(consume(Constants.MINUS) || consume('-')) {
+            BitInteger operand = parseUnary();
+            return operand == null ? null : wrap(operand.negate());
+        }
+        if(consume("not") || consume('~')) {
+            BitInteger operand = parseUnary();
+            return operand == null ? null : wrap(operand.not());
+        }
+        return parsePower();
+    }
+
+    private BitInteger parsePower() {
+        BitInteger base = parsePrimary();
+        if(base != null && consume(Constants.POWER)) {
+            // Right associative, and -2^2 is -(2^2)
+            BitInteger exponent = parseUnary();
+            return exponent == null ? null : pow(base, exponent);
+        }
+        return base;
+    }
+
+    private BitInteger parsePrimary() {
+        skipWhitespace();
+        if(consume(Constants.LEFT_PAREN)) {
+            BitInteger result = parseOr();
+            // Unclosed parenthesis are closed automatically
+            if(mPosition < mInput.length() && !consume(Constants.RIGHT_PAREN)) {
+                return null;
+            }
+            return result;
+        }
+
+        int start = mPosition;
+        while(mPosition < mInput.length() && isDigit(mInput.charAt(mPosition))) {
+            mPosition++;
+        }
+        if(start == mPosition) {
+            return null;
+        }
+        return wrap(BitInteger.parse(mInput.substring(start, mPosition), mRadix));
+    }
+
+    /**
+     * Returns base^exponent, or null for a negative exponent (a fraction) or a result too
+     * large to hold
+     * */
+    private BitInteger pow(BitInteger base, BitInteger exponent) {
+        if(exponent.isNegative()) {
+            return null;
+        }
+        if(mWordSize.isArbitrary()) {
+            int bits = base.bitLength();
+            if(bits > 1 && (exponent.bitLength() > 31 || (long) bits * exponent.longValue() > MAX_BITS)) {
+                return null;
+            }
+        }
+
+        // Square and multiply, wrapping as we go so fixed word sizes stay small
+        BitInteger result = BitInteger.ONE;
+        for(int i = exponent.bitLength() - 1; i >= 0; i--) {
+            result = wrap(result.multiply(result));
+            if(exponent.testBit(i)) {
+                result = wrap(result.multiply(base));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how far to shift or rotate, or -1 if the value is missing, negative or too large
+     * */
+    private int toDistance(BitInteger value) {
+        if(value == null || value.isNegative() || value.bitLength() > 16) {
+            return -1;
+        }
+        return (int) value.longValue();
+    }
+
+    private BitInteger wrap(BitInteger value) {
+        return value.wrap(mWordSize, mSigned);
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if(mPosition < mInput.length() && mInput.charAt(mPosition) == c) {
+            mPosition++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consume(String word) {
+        skipWhitespace();
+        if(mInput.startsWith(word, mPosition)) {
+            mPosition += word.length();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hex digits are upper case, so the lower case operators can never be mistaken for them
+     * */
+    private boolean isDigit(char c) {
+        boolean digit = (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
+        return digit && Character.digit(c, mRadix) != -1;
+    }
+
+    private void skipWhitespace() {
+        while(mPosition < mInput.length() && Character.isWhitespace(mInput.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+}
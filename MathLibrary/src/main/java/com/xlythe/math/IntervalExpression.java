@@ -0,0 +1,470 @@
+package com.xlythe.math;
+
+/**
+ * An equation of X and Y, parsed into a tree that's evaluated over intervals instead of
+ * numbers. Given a rectangle of X and Y, it returns a range that every value of the equation
+ * inside that rectangle falls within. If the range doesn't hold 0, the equation has no
+ * solutions there, and the whole rectangle can be skipped when graphing.
+ *
+ * The range is never too small, but it may be larger than the true one (ie. X-X over [0, 1]
+ * is [-1, 1]), which only means less is skipped.
+ *
+ * Only what graphs usually use is supported: + - × ÷ (and implicit multiplication, as in
+ * 2X), negation, ^, the functions below, numbers, X, Y, π and e. Anything else (ie.
+ * factorials, trig in degrees, or a variable other than X and Y) makes parse() return null,
+ * and the caller evaluates the equation point by point instead.
+ */
+abstract class IntervalExpression {
+    // The functions with a known range over an interval. √ is read separately, since it's
+    // the only one that isn't a word.
+    private static final String[] FUNCTIONS = {
+            "sin", "cos", "tan", "ln", "log", "sqrt", "abs"
+    };
+
+    /**
+     * Returns the range of the equation when X is within x and Y is within y, or null if it
+     * has no value anywhere in there (ie. sqrt(X) for negative X).
+     * */
+    abstract Interval evaluate(Interval x, Interval y);
+
+    /**
+     * Returns the equation as a tree, or null if it uses anything that isn't supported.
+     * Expects a decimal, English equation.
+     * */
+    static IntervalExpression parse(String input) {
+        Parser parser = new Parser(input);
+        IntervalExpression expression = parser.parseSum();
+        parser.skipWhitespace();
+        if(expression == null || parser.mPosition != input.length()) {
+            return null;
+        }
+        return expression;
+    }
+
+    /**
+     * A closed range of numbers, from min to max. Either end may be infinite.
+     * */
+    static final class Interval {
+        static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+        final double mMin;
+        final double mMax;
+
+        Interval(double min, double max) {
+            // 0 × ∞ and ∞ - ∞ have no answer, so assume anything
+            if(Double.isNaN(min)) min = Double.NEGATIVE_INFINITY;
+            if(Double.isNaN(max)) max = Double.POSITIVE_INFINITY;
+            mMin = min;
+            mMax = max;
+        }
+
+        boolean contains(double value) {
+            return mMin <= value && value <= mMax;
+        }
+
+        /**
+         * Like contains(0), with some room for the rounding errors the interval itself
+         * picked up while being computed
+         * */
+        boolean mayBeZero() {
+            double tolerance = 1e-9 * Math.max(1, Math.max(Math.abs(mMin), Math.abs(mMax)));
+            return mMin <= tolerance && mMax >= -tolerance;
+        }
+    }
+
+    /**
+     * Reads the equation with the same precedence arity uses. Every method returns null as
+     * soon as it finds something unsupported, and the null is passed up to parse().
+     * */
+    private static class Parser {
+        private final String mInput;
+        private int mPosition;
+
+        Parser(String input) {
+            mInput = input;
+        }
+
+        IntervalExpression parseSum() {
+            IntervalExpression result = parseProduct();
+            while(result != null) {
+                if(consume(Constants.PLUS)) {
+                    result = operation('+', result, parseProduct());
+                } else if(consume(Constants.MINUS) || consume('-')) {
+                    result = operation('-', result, parseProduct());
+                } else {
+                    return result;
+                }
+            }
+            return null;
+        }
+
+        IntervalExpression parseProduct() {
+            IntervalExpression result = parseUnary();
+            while(result != null) {
+                if(consume(Constants.MUL) || consume('*')) {
+                    result = operation('*', result, parseUnary());
+                } else if(consume(Constants.DIV) || consume('/')) {
+                    result = operation('/', result, parseUnary());
+                } else if(startsPrimary()) {
+                    // Implicit multiplication, ie. 2X or 3(X+1)
+                    result = operation('*', result, parsePower());
+                } else {
+                    return result;
+                }
+            }
+            return null;
+        }
+
+        IntervalExpression parseUnary() {
+            if(consume(Constants.MINUS) || consume('-')) {
+                IntervalExpression operand = parseUnary();
+                return operand == null ? null : new Negate(operand);
+            }
+            return parsePower();
+        }
+
+        IntervalExpression parsePower() {
+            IntervalExpression base = parsePrimary();
+            if(base != null && consume(Constants.POWER)) {
+                // Right associative, and -2^2 is -(2^2)
+                IntervalExpression exponent = parseUnary();
+                return exponent == null ? null : new Power(base, exponent);
+            }
+            return base;
+        }
+
+        IntervalExpression parsePrimary() {
+            skipWhitespace();
+            if(mPosition >= mInput.length()) {
+                return null;
+            }
+            if(consume(Constants.LEFT_PAREN)) {
+                return parseGroup();
+            }
+
+            char c = mInput.charAt(mPosition);
+            if(c == '\u221a') {
+                mPosition++;
+                IntervalExpression argument = parsePower();
+                return argument == null ? null : new Function("sqrt", argument);
+            }
+            if(c == '\u03c0') {
+                mPosition++;
+                return new Literal(Math.PI);
+            }
+            if(Character.isLetter(c)) {
+                // Like arity, a run of letters and digits is a single name (XY isn't X×Y)
+                int start = mPosition;
+                while(mPosition < mInput.length() && Character.isLetterOrDigit(mInput.charAt(mPosition))) {
+                    mPosition++;
+                }
+                return parseName(mInput.substring(start, mPosition));
+            }
+            return parseNumber();
+        }
+
+        IntervalExpression parseName(String name) {
+            switch(name) {
+                case "X":
+                case "Y":
+                    return new Variable(name.charAt(0));
+                case "pi":
+                    return new Literal(Math.PI);
+                case "e":
+                    return new Literal(Math.E);
+            }
+            for(String function : FUNCTIONS) {
+                if(function.equals(name)) {
+                    if(!consume(Constants.LEFT_PAREN)) {
+                        return null;
+                    }
+                    IntervalExpression argument = parseGroup();
+                    return argument == null ? null : new Function(function, argument);
+                }
+            }
+            return null;
+        }
+
+        IntervalExpression parseGroup() {
+            IntervalExpression result = parseSum();
+            // Unclosed parenthesis are closed automatically
+            if(mPosition < mInput.length() && !consume(Constants.RIGHT_PAREN)) {
+                return null;
+            }
+            return result;
+        }
+
+        IntervalExpression parseNumber() {
+            int start = mPosition;
+            while(mPosition < mInput.length() && isNumberCharacter(mInput.charAt(mPosition))) {
+                mPosition++;
+            }
+            // An exponent, ie. 1.5E-3
+            if(mPosition > start && mPosition < mInput.length() && mInput.charAt(mPosition) == 'E') {
+                mPosition++;
+                if(mPosition < mInput.length() && (mInput.charAt(mPosition) == '-'
+                        || mInput.charAt(mPosition) == Constants.MINUS)) {
+                    mPosition++;
+                }
+                while(mPosition < mInput.length() && Character.isDigit(mInput.charAt(mPosition))) {
+                    mPosition++;
+                }
+            }
+            if(start == mPosition) {
+                return null;
+            }
+            try {
+                return new Literal(Double.parseDouble(
+                        mInput.substring(start, mPosition).replace(Constants.MINUS, '-')));
+            } catch(NumberFormatException e) {
+                // ie. 1.2.3
+                return null;
+            }
+        }
+
+        private static IntervalExpression operation(char operator, IntervalExpression left,
+                                                    IntervalExpression right) {
+            return right == null ? null : new Operation(operator, left, right);
+        }
+
+        private boolean isNumberCharacter(char c) {
+            return (c >= '0' && c <= '9') || c == '.';
+        }
+
+        private boolean startsPrimary() {
+            skipWhitespace();
+            if(mPosition >= mInput.length()) return false;
+            char c = mInput.charAt(mPosition);
+            return c == Constants.LEFT_PAREN || isNumberCharacter(c) || Character.isLetter(c)
+                    || c == '\u221a';
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if(mPosition < mInput.length() && mInput.charAt(mPosition) == c) {
+                mPosition++;
+                return true;
+            }
+            return false;
+        }
+
+        void skipWhitespace() {
+            while(mPosition < mInput.length() && Character.isWhitespace(mInput.charAt(mPosition))) {
+                mPosition++;
+            }
+        }
+    }
+
+    private static class Literal extends IntervalExpression {
+        private final Interval mValue;
+
+        Literal(double value) {
+            mValue = new Interval(value, value);
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            return mValue;
+        }
+    }
+
+    private static class Variable extends IntervalExpression {
+        private final char mName;
+
+        Variable(char name) {
+            mName = name;
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            return mName == 'X' ? x : y;
+        }
+    }
+
+    private static class Negate extends IntervalExpression {
+        private final IntervalExpression mOperand;
+
+        Negate(IntervalExpression operand) {
+            mOperand = operand;
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            Interval a = mOperand.evaluate(x, y);
+            if(a == null) return null;
+            return new Interval(-a.mMax, -a.mMin);
+        }
+    }
+
+    private static class Operation extends IntervalExpression {
+        private final char mOperator;
+        private final IntervalExpression mLeft;
+        private final IntervalExpression mRight;
+
+        Operation(char operator, IntervalExpression left, IntervalExpression right) {
+            mOperator = operator;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            Interval a = mLeft.evaluate(x, y);
+            if(a == null) return null;
+            Interval b = mRight.evaluate(x, y);
+            if(b == null) return null;
+
+            switch(mOperator) {
+                case '+':
+                    return new Interval(a.mMin + b.mMin, a.mMax + b.mMax);
+                case '-':
+                    return new Interval(a.mMin - b.mMax, a.mMax - b.mMin);
+                case '*':
+                    return multiply(a, b);
+                default:
+                    return divide(a, b);
+            }
+        }
+    }
+
+    private static Interval multiply(Interval a, Interval b) {
+        double p1 = a.mMin * b.mMin;
+        double p2 = a.mMin * b.mMax;
+        double p3 = a.mMax * b.mMin;
+        double p4 = a.mMax * b.mMax;
+        if(Double.isNaN(p1) || Double.isNaN(p2) || Double.isNaN(p3) || Double.isNaN(p4)) {
+            return Interval.ENTIRE;
+        }
+        return new Interval(Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+    }
+
+    private static Interval divide(Interval a, Interval b) {
+        if(b.contains(0)) {
+            // Dividing by (nearly) 0 can give anything
+            return Interval.ENTIRE;
+        }
+        return multiply(a, new Interval(1 / b.mMax, 1 / b.mMin));
+    }
+
+    private static class Power extends IntervalExpression {
+        private final IntervalExpression mBase;
+        private final IntervalExpression mExponent;
+
+        Power(IntervalExpression base, IntervalExpression exponent) {
+            mBase = base;
+            mExponent = exponent;
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            Interval base = mBase.evaluate(x, y);
+            if(base == null) return null;
+            Interval exponent = mExponent.evaluate(x, y);
+            if(exponent == null) return null;
+
+            if(exponent.mMin == exponent.mMax && exponent.mMin == Math.rint(exponent.mMin)
+                    && Math.abs(exponent.mMin) <= Integer.MAX_VALUE) {
+                return pow(base, (int) exponent.mMin);
+            }
+
+            // Anything else is only defined for a positive base: b^e = exp(e × ln(b))
+            Interval log = log(base);
+            if(log == null) return null;
+            Interval product = multiply(exponent, log);
+            return new Interval(Math.exp(product.mMin), Math.exp(product.mMax));
+        }
+
+        private static Interval pow(Interval base, int n) {
+            if(n == 0) {
+                return new Interval(1, 1);
+            }
+            if(n < 0) {
+                return divide(new Interval(1, 1), pow(base, -n));
+            }
+            double a = Math.pow(base.mMin, n);
+            double b = Math.pow(base.mMax, n);
+            if(n % 2 == 1) {
+                // Odd powers keep the order
+                return new Interval(a, b);
+            }
+            if(base.contains(0)) {
+                return new Interval(0, Math.max(a, b));
+            }
+            return new Interval(Math.min(a, b), Math.max(a, b));
+        }
+    }
+
+    private static class Function extends IntervalExpression {
+        private final String mName;
+        private final IntervalExpression mArgument;
+
+        Function(String name, IntervalExpression argument) {
+            mName = name;
+            mArgument = argument;
+        }
+
+        @Override
+        Interval evaluate(Interval x, Interval y) {
+            Interval a = mArgument.evaluate(x, y);
+            if(a == null) return null;
+
+            switch(mName) {
+                case "sin":
+                    return sin(a);
+                case "cos":
+                    return sin(new Interval(a.mMin + Math.PI / 2, a.mMax + Math.PI / 2));
+                case "tan":
+                    return tan(a);
+                case "ln":
+                    return log(a);
+                case "log":
+                    Interval log = log(a);
+                    if(log == null) return null;
+                    return new Interval(log.mMin / Math.log(10), log.mMax / Math.log(10));
+                case "abs":
+                    if(a.contains(0)) return new Interval(0, Math.max(-a.mMin, a.mMax));
+                    return new Interval(Math.min(Math.abs(a.mMin), Math.abs(a.mMax)),
+                            Math.max(Math.abs(a.mMin), Math.abs(a.mMax)));
+                default:
+                    if(a.mMax < 0) return null;
+                    return new Interval(Math.sqrt(Math.max(0, a.mMin)), Math.sqrt(a.mMax));
+            }
+        }
+    }
+
+    /**
+     * ln over the positive part of the interval, or null if it has none
+     * */
+    private static Interval log(Interval a) {
+        if(a.mMax <= 0) return null;
+        return new Interval(a.mMin <= 0 ? Double.NEGATIVE_INFINITY : Math.log(a.mMin), Math.log(a.mMax));
+    }
+
+    private static Interval sin(Interval a) {
+        if(Double.isInfinite(a.mMin) || Double.isInfinite(a.mMax) || a.mMax - a.mMin >= 2 * Math.PI) {
+            return new Interval(-1, 1);
+        }
+        double min = Math.min(Math.sin(a.mMin), Math.sin(a.mMax));
+        double max = Math.max(Math.sin(a.mMin), Math.sin(a.mMax));
+        // The peaks at π/2 + 2kπ and the troughs at -π/2 + 2kπ
+        if(Math.ceil((a.mMin - Math.PI / 2) / (2 * Math.PI)) <= Math.floor((a.mMax - Math.PI / 2) / (2 * Math.PI))) {
+            max = 1;
+        }
+        if(Math.ceil((a.mMin + Math.PI / 2) / (2 * Math.PI)) <= Math.floor((a.mMax + Math.PI / 2) / (2 * Math.PI))) {
+            min = -1;
+        }
+        return new Interval(min, max);
+    }
+
+    private static Interval tan(Interval a) {
+        if(Double.isInfinite(a.mMin) || Double.isInfinite(a.mMax) || a.mMax - a.mMin >= Math.PI) {
+            return Interval.ENTIRE;
+        }
+        // The asymptotes at π/2 + kπ
+        if(Math.ceil((a.mMin - Math.PI / 2) / Math.PI) <= Math.floor((a.mMax - Math.PI / 2) / Math.PI)) {
+            return Interval.ENTIRE;
+        }
+        return new Interval(Math.tan(a.mMin), Math.tan(a.mMax));
+    }
+}
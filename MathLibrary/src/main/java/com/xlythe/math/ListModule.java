@@ -0,0 +1,88 @@
+package com.xlythe.math;
+
+import org.javia.arity.SyntaxException;
+
+/**
+ * Solves statistics over a list of numbers, ie. mean(1, 2, 3)
+ *
+ * The numbers can be split by commas, semicolons, spaces, tabs or new lines, so a column
+ * pasted from a spreadsheet works as is. They're read straight into a NumberList instead of
+ * being compiled by arity (which only has functions with a fixed number of arguments).
+ *
+ * Supports:
+ * sum, mean, median, var (sample variance), stdev (sample standard deviation), min, max
+ * percentile(p, list), where p is from 0 to 100
+ */
+public class ListModule extends Module {
+    private static final String[] FUNCTIONS = {
+            "sum", "mean", "median", "var", "stdev", "min", "max", "percentile"
+    };
+
+    ListModule(Solver solver) {
+        super(solver);
+    }
+
+    /**
+     * Returns the result if the equation is a statistic of a list of plain numbers,
+     * or null if it's anything else. Expects a decimal, English equation.
+     * */
+    Double solve(String input) throws SyntaxException {
+        if(getSolver().getBase() != Base.DECIMAL) return null;
+
+        int open = input.indexOf('(');
+        if(open == -1) return null;
+        String function = input.substring(0, open).trim();
+        if(indexOf(function) == -1) return null;
+
+        // Ignore a missing final parenthesis, like arity does
+        int end = input.length();
+        while(end > open + 1 && Character.isWhitespace(input.charAt(end - 1))) end--;
+        if(end > open + 1 && input.charAt(end - 1) == ')') end--;
+
+        // Anything beyond plain numbers (operators, constants, functions) is left to arity
+        for(int i = open + 1; i < end; i++) {
+            if(!isListCharacter(input.charAt(i))) return null;
+        }
+        NumberList list;
+        try {
+            list = NumberList.parse(input, open + 1, end);
+        } catch(SyntaxException e) {
+            // eg. min(2-3, 4)
+            return null;
+        }
+
+        switch(function) {
+            case "sum":
+                return list.sum();
+            case "mean":
+                return list.mean();
+            case "median":
+                return list.median();
+            case "var":
+                return list.variance();
+            case "stdev":
+                return list.standardDeviation();
+            case "min":
+                return list.min();
+            case "max":
+                return list.max();
+            case "percentile":
+                if(list.size() < 2) throw new SyntaxException();
+                return list.subList(1, list.size()).percentile(list.get(0));
+        }
+        return null;
+    }
+
+    private static int indexOf(String function) {
+        for(int i = 0; i < FUNCTIONS.length; i++) {
+            if(FUNCTIONS[i].equals(function)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isListCharacter(char c) {
+        // A lowercase e is Euler's number to arity, so only E is read as an exponent
+        return (c >= '0' && c <= '9') || c == '.' || c == ',' || c == ';' || c == 'E'
+                || c == '-' || c == '+' || c == Constants.MINUS || Character.isWhitespace(c);
+    }
+}
@@ -6,8 +6,6 @@ import android.util.SparseArray;
 
 import java.lang.reflect.Field;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -19,6 +17,8 @@ public class Localizer {
     private static final String TAG = Localizer.class.getSimpleName();
     private final Map<String, String> mMap = new HashMap<String, String>();
     private boolean mUseDegrees = false;
+    private volatile TokenTranslator mToEnglish = new TokenTranslator();
+    private volatile TokenTranslator mToLocal = new TokenTranslator();
 
     public Localizer(Context context, Class r) {
         buildResourceMap(context, r);
@@ -54,6 +54,7 @@ public class Localizer {
         } catch (ClassNotFoundException e) {
             // Do nothing. Happens if no Strings are found.
         }
+        buildTranslators();
     }
 
     private boolean detect(Context context, Field f, String phrase) throws IllegalAccessException {
@@ -70,27 +71,7 @@ public class Localizer {
      * Used because the math library only understands English.
      * */
     public String localize(String input) {
-        // Delocalize functions (e.g. Spanish localizes "sin" as "sen").
-        // Order matters for arc functions
-        input = translate(input, "asin");
-        input = translate(input, "acos");
-        input = translate(input, "atan");
-        input = translate(input, "sin");
-        input = translate(input, "cos");
-        input = translate(input, "tan");
-        if(mUseDegrees) {
-            input = input.replace("sin", "sind");
-            input = input.replace("cos", "cosd");
-            input = input.replace("tan", "tand");
-        }
-        input = translate(input, "log");
-        input = translate(input, "ln");
-        input = translate(input, "det");
-        input = translate(input, "sqrt");
-        input = translate(input, "cbrt");
-        input = translate(input, ".");
-        input = translate(input, ",");
-        return input;
+        return mToEnglish.translate(input);
     }
 
     /**
@@ -99,30 +80,29 @@ public class Localizer {
      * We only care about comas and periods because, by now, the math problem should be solved.
      * */
     String relocalize(String input) {
-        input = retranslate(input, ",");
-        input = retranslate(input, ".");
-        return input;
+        return mToLocal.translate(input);
     }
 
     /**
-     * Checks if a word has a translation.
-     * If so, replaces the sentence with the English word.
+     * Compiles the resource map into translators, so that localizing is a single pass
+     * instead of one replace per word.
      * */
-    private String translate(String sentence, String word) {
-        if(mMap.get(word) != null) {
-            return sentence.replace(mMap.get(word), word);
+    private void buildTranslators() {
+        TokenTranslator toEnglish = new TokenTranslator();
+        // Delocalize functions (e.g. Spanish localizes "sin" as "sen").
+        for(String word : new String[] { "asin", "acos", "atan", "sin", "cos", "tan" }) {
+            String english = mUseDegrees ? word + "d" : word;
+            toEnglish.put(mMap.get(word), english);
         }
-        return sentence;
-    }
-
-    /**
-     * Checks if a word has a translation.
-     * If so, replaces the sentence with the localized word.
-     * */
-    private String retranslate(String sentence, String word) {
-        if(mMap.get(word) != null) {
-            return sentence.replace(word, mMap.get(word));
+        for(String word : new String[] { "log", "ln", "det", "sqrt", "cbrt", ".", "," }) {
+            toEnglish.put(mMap.get(word), word);
         }
-        return sentence;
+
+        TokenTranslator toLocal = new TokenTranslator();
+        toLocal.put(",", mMap.get(","));
+        toLocal.put(".", mMap.get("."));
+
+        mToEnglish = toEnglish;
+        mToLocal = toLocal;
     }
 }
@@ -0,0 +1,323 @@
+package com.xlythe.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Traces the curves where f(x, y) = 0 (ie. x^2+y^2-25 for the circle x^2+y^2=25).
+ *
+ * f is evaluated once on a square grid. Every grid edge where f changes sign is crossed by a
+ * curve, at the point found by interpolating f linearly along the edge. Each grid cell then
+ * joins the crossings on its sides (marching squares), and the joined segments are followed
+ * from crossing to crossing, so each curve comes out as an ordered line.
+ *
+ * When the bounds of f over a rectangle are known, the grid is split into quarters (a
+ * quadtree) and only the cells f could be 0 in are evaluated. Thin curves then only cost
+ * the cells along them instead of the whole grid.
+ *
+ * Evaluating f is split into bands of rows, which run on every core. Each band only writes the
+ * grid points and edges of its own rows, so the bands never share a value, and the crossings
+ * are joined and followed afterwards on the calling thread, in the same order as before. The
+ * field must be safe to evaluate from several threads at once.
+ */
+final class MarchingSquares {
+    // Grids are kept under this many points, making the cells larger if needed
+    private static final int MAX_POINTS = 1 << 20;
+    // Each band of rows evaluated on another core gets at least this many rows
+    private static final int MIN_BAND = 16;
+
+    /**
+     * A function of x and y
+     * */
+    interface Field {
+        double eval(double x, double y);
+    }
+
+    /**
+     * Says if f could be 0 anywhere in a rectangle. It may say yes when it isn't, but never no
+     * when it is.
+     * */
+    interface Bounds {
+        boolean mayBeZero(double minX, double maxX, double minY, double maxY);
+    }
+
+    private final Field mField;
+    private final double mMinX;
+    private final double mMinY;
+    private final double mStep;
+    private final int mRows;
+    private final int mColumns;
+
+    // The cells (by their bottom left point) a curve may pass through
+    private final boolean[] mActive;
+    // f at each grid point, row by row (y, then x). Only filled in around active cells.
+    private final double[] mValues;
+    // Where a curve crosses each edge: x along a horizontal edge, y along a vertical one.
+    // NaN if it doesn't.
+    private final double[] mCrossings;
+    // The (up to) two crossings each crossing is joined to, or -1
+    private final int[] mLinks;
+
+    private MarchingSquares(Field field, double minX, double maxX, double minY, double maxY, double step) {
+        long columns = (long) Math.ceil((maxX - minX) / step) + 2;
+        long rows = (long) Math.ceil((maxY - minY) / step) + 2;
+        while(rows * columns > MAX_POINTS) {
+            step *= 2;
+            columns = (long) Math.ceil((maxX - minX) / step) + 2;
+            rows = (long) Math.ceil((maxY - minY) / step) + 2;
+        }
+
+        mField = field;
+        // Aligned to the step, so panning doesn't shift the grid
+        mMinX = Math.floor(minX / step) * step;
+        mMinY = Math.floor(minY / step) * step;
+        mStep = step;
+        mRows = (int) rows;
+        mColumns = (int) columns;
+        mActive = new boolean[mRows * mColumns];
+        mValues = new double[mRows * mColumns];
+        // Horizontal edges first, then vertical edges. Edge i starts at grid point i % points.
+        mCrossings = new double[2 * mRows * mColumns];
+        mLinks = new int[4 * mRows * mColumns];
+    }
+
+    /**
+     * Returns the curves where f(x, y) = 0 within the bounds, each one an ordered line of
+     * points. Curves are separated by a NaN point. Closed curves end where they start.
+     *
+     * step is the size of a grid cell. Curves smaller than a cell may be missed. bounds may be
+     * null, in which case every cell is evaluated.
+     * */
+    static List<Point> trace(Field field, Bounds bounds, double minX, double maxX, double minY, double maxY,
+                             double step) {
+        MarchingSquares squares = new MarchingSquares(field, minX, maxX, minY, maxY, step);
+        if(bounds == null) {
+            Arrays.fill(squares.mActive, true);
+        } else {
+            squares.activate(bounds, 0, squares.mRows - 1, 0, squares.mColumns - 1);
+        }
+        squares.evaluate();
+        squares.findCrossings();
+        squares.join();
+        return squares.follow();
+    }
+
+    private double x(int column) {
+        return mMinX + column * mStep;
+    }
+
+    private double y(int row) {
+        return mMinY + row * mStep;
+    }
+
+    /**
+     * Marks the cells from rows [minRow, maxRow) and columns [minColumn, maxColumn) that f
+     * could be 0 in, skipping every quarter it can't be
+     * */
+    private void activate(Bounds bounds, int minRow, int maxRow, int minColumn, int maxColumn) {
+        if(!bounds.mayBeZero(x(minColumn), x(maxColumn), y(minRow), y(maxRow))) {
+            return;
+        }
+        if(maxRow - minRow == 1 && maxColumn - minColumn == 1) {
+            mActive[minRow * mColumns + minColumn] = true;
+            return;
+        }
+
+        int middleRow = (minRow + maxRow + 1) / 2;
+        int middleColumn = (minColumn + maxColumn + 1) / 2;
+        if(maxRow - minRow == 1) middleRow = maxRow;
+        if(maxColumn - minColumn == 1) middleColumn = maxColumn;
+        activate(bounds, minRow, middleRow, minColumn, middleColumn);
+        if(middleColumn < maxColumn) activate(bounds, minRow, middleRow, middleColumn, maxColumn);
+        if(middleRow < maxRow) activate(bounds, middleRow, maxRow, minColumn, middleColumn);
+        if(middleRow < maxRow && middleColumn < maxColumn) activate(bounds, middleRow, maxRow, middleColumn, maxColumn);
+    }
+
+    private void evaluate() {
+        Panels.forEach(mRows, MIN_BAND, new Panels.Panel() {
+            @Override
+            public void run(int start, int end) {
+                evaluate(start, end);
+            }
+        });
+    }
+
+    /**
+     * Evaluates the points in rows [start, end) that are a corner of an active cell
+     * */
+    private void evaluate(int start, int end) {
+        for(int i = start; i < end; i++) {
+            for(int j = 0; j < mColumns; j++) {
+                if(isActive(i, j) || isActive(i, j - 1) || isActive(i - 1, j) || isActive(i - 1, j - 1)) {
+                    mValues[i * mColumns + j] = mField.eval(x(j), y(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * If the cell with this bottom left point is on the grid and active
+     * */
+    private boolean isActive(int row, int column) {
+        return row >= 0 && column >= 0 && row + 1 < mRows && column + 1 < mColumns
+                && mActive[row * mColumns + column];
+    }
+
+    private void findCrossings() {
+        Arrays.fill(mCrossings, Double.NaN);
+        Panels.forEach(mRows, MIN_BAND, new Panels.Panel() {
+            @Override
+            public void run(int start, int end) {
+                findCrossings(start, end);
+            }
+        });
+    }
+
+    /**
+     * Finds the crossings on the edges starting in rows [start, end)
+     * */
+    private void findCrossings(int start, int end) {
+        int points = mRows * mColumns;
+        for(int i = start; i < end; i++) {
+            for(int j = 0; j < mColumns; j++) {
+                int point = i * mColumns + j;
+                // Only the edges of active cells (the cell above or below, left or right)
+                boolean below = i > 0 && mActive[point - mColumns];
+                boolean left = j > 0 && mActive[point - 1];
+                if(j + 1 < mColumns && (mActive[point] || below)) {
+                    double t = crossing(mValues[point], mValues[point + 1]);
+                    if(!Double.isNaN(t)) {
+                        double x = x(j) + t * mStep;
+                        if(isRoot(x, y(i), mValues[point], mValues[point + 1])) mCrossings[point] = x;
+                    }
+                }
+                if(i + 1 < mRows && (mActive[point] || left)) {
+                    double t = crossing(mValues[point], mValues[point + mColumns]);
+                    if(!Double.isNaN(t)) {
+                        double y = y(i) + t * mStep;
+                        if(isRoot(x(j), y, mValues[point], mValues[point + mColumns])) mCrossings[points + point] = y;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how far along the edge (from 0 to 1) f reaches 0, or NaN if it doesn't
+     * */
+    private static double crossing(double a, double b) {
+        if(!isFinite(a) || !isFinite(b) || (a >= 0) == (b >= 0)) return Double.NaN;
+        return a / (a - b);
+    }
+
+    /**
+     * A sign change can also be a pole (ie. 1/x = y at x = 0). Near a real root f is close
+     * to 0, while near a pole it's at least as large as it is at the ends of the edge.
+     * */
+    private boolean isRoot(double x, double y, double a, double b) {
+        double value = mField.eval(x, y);
+        return isFinite(value) && Math.abs(value) <= Math.max(Math.abs(a), Math.abs(b)) / 2;
+    }
+
+    private void join() {
+        int points = mRows * mColumns;
+        Arrays.fill(mLinks, -1);
+        int[] edges = new int[4];
+        for(int i = 0; i + 1 < mRows; i++) {
+            for(int j = 0; j + 1 < mColumns; j++) {
+                int point = i * mColumns + j;
+                if(!mActive[point]) continue;
+                int bottom = point;
+                int right = points + point + 1;
+                int top = point + mColumns;
+                int left = points + point;
+
+                // The crossed sides, counterclockwise
+                int count = 0;
+                if(!Double.isNaN(mCrossings[bottom])) edges[count++] = bottom;
+                if(!Double.isNaN(mCrossings[right])) edges[count++] = right;
+                if(!Double.isNaN(mCrossings[top])) edges[count++] = top;
+                if(!Double.isNaN(mCrossings[left])) edges[count++] = left;
+
+                if(count == 2) {
+                    link(edges[0], edges[1]);
+                } else if(count == 4) {
+                    // A saddle: two opposite corners are positive, two negative. The average
+                    // of the corners decides which pair the middle of the cell belongs to.
+                    double bottomLeft = mValues[point];
+                    double center = (bottomLeft + mValues[point + 1]
+                            + mValues[point + mColumns] + mValues[point + mColumns + 1]) / 4;
+                    if((center >= 0) == (bottomLeft >= 0)) {
+                        // The bottom right and top left corners are cut off
+                        link(bottom, right);
+                        link(top, left);
+                    } else {
+                        // The bottom left and top right corners are cut off
+                        link(bottom, left);
+                        link(right, top);
+                    }
+                }
+                // Anything else has a crossing that was a pole, or a corner with no value
+            }
+        }
+    }
+
+    private void link(int a, int b) {
+        mLinks[2 * a + (mLinks[2 * a] == -1 ? 0 : 1)] = b;
+        mLinks[2 * b + (mLinks[2 * b] == -1 ? 0 : 1)] = a;
+    }
+
+    private List<Point> follow() {
+        List<Point> series = new ArrayList<>();
+        boolean[] visited = new boolean[mCrossings.length];
+
+        // Open curves (ending at the edge of the grid, or at a pole) start at an end
+        for(int edge = 0; edge < mCrossings.length; edge++) {
+            if(!visited[edge] && mLinks[2 * edge] != -1 && mLinks[2 * edge + 1] == -1) {
+                follow(edge, visited, series);
+            }
+        }
+        // Everything left is a closed curve
+        for(int edge = 0; edge < mCrossings.length; edge++) {
+            if(!visited[edge] && mLinks[2 * edge] != -1) {
+                follow(edge, visited, series);
+            }
+        }
+        return series;
+    }
+
+    private void follow(int start, boolean[] visited, List<Point> series) {
+        if(!series.isEmpty()) {
+            series.add(new Point(Float.NaN, Float.NaN));
+        }
+
+        int previous = -1;
+        int edge = start;
+        while(true) {
+            visited[edge] = true;
+            series.add(pointOn(edge));
+
+            int next = mLinks[2 * edge] != previous ? mLinks[2 * edge] : mLinks[2 * edge + 1];
+            if(next == -1) break;
+            if(visited[next]) {
+                if(next == start) series.add(pointOn(start));
+                break;
+            }
+            previous = edge;
+            edge = next;
+        }
+    }
+
+    private Point pointOn(int edge) {
+        int points = mRows * mColumns;
+        if(edge < points) {
+            return new Point((float) mCrossings[edge], (float) y(edge / mColumns));
+        }
+        return new Point((float) x((edge - points) % mColumns), (float) mCrossings[edge]);
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+}
@@ -0,0 +1,109 @@
+package com.xlythe.math;
+
+/**
+ * Finds matrices, like [[1,2][3,4]], in an equation.
+ *
+ * A matrix is a [, one or more rows, and a ]. A row is a [, cells split by the matrix
+ * separator, and a ]. A cell is an optional minus sign, digits (0-9, A-F) and at most one
+ * decimal point. Cells may be empty, since the user fills them in after inserting the matrix.
+ *
+ * Each match is a single forward scan with no backtracking, so checking every keystroke
+ * stays cheap no matter how long the equation gets.
+ *
+ * The separators depend on the locale, so get an instance through getInstance(), which
+ * rebuilds it whenever Constants are rebuilt.
+ */
+public class MatrixDetector {
+    private static MatrixDetector sInstance;
+
+    private final int mGeneration;
+    private final char mSeparator;
+    private final char mDecimalPoint;
+
+    private MatrixDetector() {
+        mGeneration = Constants.getGeneration();
+        mSeparator = Constants.MATRIX_SEPARATOR;
+        mDecimalPoint = Constants.DECIMAL_POINT;
+    }
+
+    public static synchronized MatrixDetector getInstance() {
+        if(sInstance == null || sInstance.mGeneration != Constants.getGeneration()) {
+            sInstance = new MatrixDetector();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns true if there's a matrix anywhere in the text
+     * */
+    public boolean containsMatrix(CharSequence text) {
+        return find(text, 0) != null;
+    }
+
+    /**
+     * Returns the start and end of the first matrix at or after the given index,
+     * or null if there aren't any.
+     * */
+    public int[] find(CharSequence text, int from) {
+        for(int i = from; i < text.length() - 1; i++) {
+            if(text.charAt(i) == '[' && text.charAt(i + 1) == '[') {
+                int end = matchAt(text, i);
+                if(end != -1) {
+                    return new int[] {i, end};
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If a matrix starts at the given index, returns the index after its last ].
+     * Otherwise returns -1.
+     * */
+    public int matchAt(CharSequence text, int start) {
+        int length = text.length();
+        int i = start;
+        if(i >= length || text.charAt(i) != '[') return -1;
+        i++;
+
+        int rows = 0;
+        while(i < length && text.charAt(i) == '[') {
+            i = matchRow(text, i + 1);
+            if(i == -1) return -1;
+            rows++;
+        }
+
+        if(rows == 0 || i >= length || text.charAt(i) != ']') return -1;
+        return i + 1;
+    }
+
+    /**
+     * Reads the cells of a row, starting after its [. Returns the index after its ], or -1.
+     * */
+    private int matchRow(CharSequence text, int i) {
+        int length = text.length();
+        while(true) {
+            // One cell
+            if(i < length && isMinus(text.charAt(i))) i++;
+            while(i < length && isDigit(text.charAt(i))) i++;
+            if(i < length && text.charAt(i) == mDecimalPoint) {
+                i++;
+                while(i < length && isDigit(text.charAt(i))) i++;
+            }
+
+            if(i >= length) return -1;
+            char c = text.charAt(i);
+            if(c == ']') return i + 1;
+            if(c != mSeparator) return -1;
+            i++;
+        }
+    }
+
+    private static boolean isMinus(char c) {
+        return c == Constants.MINUS || c == '-';
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
+    }
+}
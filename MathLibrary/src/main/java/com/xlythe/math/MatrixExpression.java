@@ -0,0 +1,634 @@
+package com.xlythe.math;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+import org.javia.arity.SyntaxException;
+
+import java.util.Arrays;
+
+/**
+ * A matrix equation, parsed into a tree.
+ *
+ * The text is read once by a Tokenizer, parsed into nodes, and then evaluated bottom up.
+ * Values are passed between nodes as Doubles, SimpleMatrices or SparseMatrices, so matrices
+ * are never printed and re-read while the equation is being solved.
+ *
+ * From lowest to highest precedence:
+ * + -, × ÷ (and implicit multiplication), unary -, ^ (right associative),
+ * ! % ^T and the inverse ^-1, functions, then numbers, constants, (...) and [[...]]
+ *
+ * Usage:
+ * Object result = MatrixExpression.parse(input).evaluate(matrixModule);
+ */
+abstract class MatrixExpression {
+    // Longer names go first, so asind isn't read as asin followed by d
+    private static final String[] FUNCTIONS = {
+            "asind", "acosd", "atand", "asin", "acos", "atan", "sind", "cosd", "tand",
+            "sin", "cos", "tan", "cbrt", "sqrt", "log", "ln", "det", "\u221a"
+    };
+    private static final String[] CONSTANTS = {
+            Constants.INFINITY, Constants.INFINITY_UNICODE, "\u03c0", "e"
+    };
+
+    // Marks a ^-1 as the inverse of a matrix, instead of a power
+    private static final char INVERSE_PLACEHOLDER = '\uFEFF';
+
+    /**
+     * Returns a Double, a SimpleMatrix or a SparseMatrix. A matrix is always a new one that
+     * nothing else holds, so MatrixModule may write the result of an operation into it.
+     * */
+    abstract Object evaluate(MatrixModule module) throws SyntaxException;
+
+    static MatrixExpression parse(String input) throws SyntaxException {
+        Parser parser = new Parser(new Tokenizer(input));
+        MatrixExpression expression = parser.parseSum();
+        if(parser.mToken.mType != Type.END) {
+            throw new SyntaxException();
+        }
+        return expression;
+    }
+
+    private enum Type {
+        NUMBER, CONSTANT, FUNCTION, OPERATOR, END
+    }
+
+    private static class Token {
+        final Type mType;
+        final double mNumber;
+        final String mWord;
+        final char mOperator;
+
+        Token(Type type, double number, String word, char operator) {
+            mType = type;
+            mNumber = number;
+            mWord = word;
+            mOperator = operator;
+        }
+
+        boolean is(char operator) {
+            return mType == Type.OPERATOR && mOperator == operator;
+        }
+    }
+
+    /**
+     * Splits the equation into numbers, constants, functions and operators.
+     * Minus signs, multiplication and division are read in both their ascii and unicode forms.
+     * ^T becomes the operator T, and ^-1 after the inverse placeholder becomes the operator I.
+     */
+    private static class Tokenizer {
+        private static final Token END = new Token(Type.END, 0, null, '\0');
+
+        private final String mInput;
+        private int mPosition;
+        private double mLiteral;
+
+        Tokenizer(String input) {
+            mInput = input;
+        }
+
+        Token next() throws SyntaxException {
+            skipWhitespace();
+            if(mPosition >= mInput.length()) {
+                return END;
+            }
+
+            char c = mInput.charAt(mPosition);
+            if(isDigit(c) || c == '.') {
+                return readNumber();
+            }
+            if(c == INVERSE_PLACEHOLDER) {
+                return readInverse();
+            }
+            if(c == Constants.POWER && mInput.startsWith("T", mPosition + 1)) {
+                mPosition += 2;
+                return operator('T');
+            }
+            for(String word : FUNCTIONS) {
+                if(mInput.startsWith(word, mPosition)) {
+                    mPosition += word.length();
+                    return new Token(Type.FUNCTION, 0, word, '\0');
+                }
+            }
+            for(String word : CONSTANTS) {
+                if(mInput.startsWith(word, mPosition)) {
+                    mPosition += word.length();
+                    return new Token(Type.CONSTANT, constant(word), word, '\0');
+                }
+            }
+
+            mPosition++;
+            switch(c) {
+                case Constants.MINUS:
+                    return operator('-');
+                case '*':
+                    return operator(Constants.MUL);
+                case '/':
+                    return operator(Constants.DIV);
+                case '-':
+                case Constants.PLUS:
+                case Constants.MUL:
+                case Constants.DIV:
+                case Constants.POWER:
+                case Constants.LEFT_PAREN:
+                case Constants.RIGHT_PAREN:
+                case '[':
+                case ']':
+                case ',':
+                case '!':
+                case '%':
+                    return operator(c);
+                default:
+                    throw new SyntaxException();
+            }
+        }
+
+        private Token readNumber() throws SyntaxException {
+            int start = mPosition;
+            while(mPosition < mInput.length() && (isDigit(mInput.charAt(mPosition)) || mInput.charAt(mPosition) == '.')) {
+                mPosition++;
+            }
+
+            // Scientific notation, as long as it isn't 2e (2 times e)
+            if(mPosition < mInput.length() && (mInput.charAt(mPosition) == 'e' || mInput.charAt(mPosition) == 'E')) {
+                int exponent = mPosition + 1;
+                if(exponent < mInput.length() && isSign(mInput.charAt(exponent))) exponent++;
+                if(exponent < mInput.length() && isDigit(mInput.charAt(exponent))) {
+                    mPosition = exponent;
+                    while(mPosition < mInput.length() && isDigit(mInput.charAt(mPosition))) {
+                        mPosition++;
+                    }
+                }
+            }
+
+            String number = mInput.substring(start, mPosition).replace(Constants.MINUS, '-');
+            try {
+                return new Token(Type.NUMBER, Double.parseDouble(number), null, '\0');
+            } catch(NumberFormatException e) {
+                throw new SyntaxException();
+            }
+        }
+
+        /**
+         * Reads a plain number (eg. −3.5, 2 or 1E5) as long as it fills a whole matrix cell,
+         * leaving the , or ] after it for next(). Returns false, without reading anything,
+         * if the cell is anything else.
+         * */
+        boolean readLiteral() {
+            int position = mPosition;
+            while(position < mInput.length() && Character.isWhitespace(mInput.charAt(position))) position++;
+            int start = position;
+
+            boolean negative = position < mInput.length() && isMinus(mInput.charAt(position));
+            if(negative) position++;
+
+            // Small whole numbers are exact as doubles, so they skip Double.parseDouble()
+            long mantissa = 0;
+            int digits = 0;
+            boolean simple = true;
+            while(position < mInput.length()) {
+                char c = mInput.charAt(position);
+                if(isDigit(c)) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                } else if(isDecimalPoint(c)) {
+                    simple = false;
+                } else {
+                    break;
+                }
+                position++;
+            }
+            if(digits == 0) {
+                return false;
+            }
+            if(position < mInput.length() && (mInput.charAt(position) == 'e' || mInput.charAt(position) == 'E')) {
+                position++;
+                if(position < mInput.length() && isSign(mInput.charAt(position))) position++;
+                int exponentStart = position;
+                while(position < mInput.length() && isDigit(mInput.charAt(position))) position++;
+                if(exponentStart == position) return false;
+                simple = false;
+            }
+
+            int end = position;
+            while(position < mInput.length() && Character.isWhitespace(mInput.charAt(position))) position++;
+            if(position == mInput.length() || (mInput.charAt(position) != ',' && mInput.charAt(position) != ']')) {
+                return false;
+            }
+
+            if(simple && digits <= 15) {
+                mLiteral = negative ? -(double) mantissa : mantissa;
+            } else {
+                String number = mInput.substring(start, end)
+                        .replace(Constants.MINUS, '-')
+                        .replace(Constants.DECIMAL_POINT, '.');
+                try {
+                    mLiteral = Double.parseDouble(number);
+                } catch(NumberFormatException e) {
+                    return false;
+                }
+            }
+            mPosition = position;
+            return true;
+        }
+
+        double getLiteral() {
+            return mLiteral;
+        }
+
+        private Token readInverse() throws SyntaxException {
+            int position = mPosition + 1;
+            if(position + 2 < mInput.length()
+                    && mInput.charAt(position) == Constants.POWER
+                    && isMinus(mInput.charAt(position + 1))
+                    && mInput.charAt(position + 2) == '1'
+                    && (position + 3 == mInput.length() || !isDigit(mInput.charAt(position + 3)))) {
+                mPosition = position + 3;
+                return operator('I');
+            }
+
+            // A stray placeholder is invisible, so ignore it
+            mPosition++;
+            return next();
+        }
+
+        private void skipWhitespace() {
+            while(mPosition < mInput.length() && Character.isWhitespace(mInput.charAt(mPosition))) {
+                mPosition++;
+            }
+        }
+
+        private static Token operator(char c) {
+            return new Token(Type.OPERATOR, 0, null, c);
+        }
+
+        private static double constant(String word) {
+            if(word.equals("e")) return Math.E;
+            if(word.equals("\u03c0")) return Math.PI;
+            return Double.POSITIVE_INFINITY;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static boolean isSign(char c) {
+            return isMinus(c) || c == Constants.PLUS;
+        }
+
+        /**
+         * The decimal point is normally a '.', but pasted matrices may use the local one
+         * */
+        private static boolean isDecimalPoint(char c) {
+            return c == '.' || (c == Constants.DECIMAL_POINT && c != ',');
+        }
+
+        private static boolean isMinus(char c) {
+            return c == '-' || c == Constants.MINUS;
+        }
+    }
+
+    private static class Parser {
+        private final Tokenizer mTokenizer;
+        private Token mToken;
+
+        Parser(Tokenizer tokenizer) throws SyntaxException {
+            mTokenizer = tokenizer;
+            mToken = tokenizer.next();
+        }
+
+        MatrixExpression parseSum() throws SyntaxException {
+            MatrixExpression result = parseProduct();
+            while(mToken.is(Constants.PLUS) || mToken.is('-')) {
+                char operator = consume().mOperator;
+                result = new BinaryOperation(operator, result, parseProduct());
+            }
+            return result;
+        }
+
+        private MatrixExpression parseProduct() throws SyntaxException {
+            MatrixExpression result = parseUnary();
+            while(true) {
+                if(mToken.is(Constants.MUL) || mToken.is(Constants.DIV)) {
+                    char operator = consume().mOperator;
+                    result = new BinaryOperation(operator, result, parseUnary());
+                } else if(startsOperand()) {
+                    // Implicit multiplication, eg. 2π or 2[[1,2]]
+                    result = new BinaryOperation(Constants.MUL, result, parseUnary());
+                } else {
+                    return result;
+                }
+            }
+        }
+
+        private MatrixExpression parseUnary() throws SyntaxException {
+            if(mToken.is('-')) {
+                consume();
+                return new UnaryOperation('-', parseUnary());
+            }
+            if(mToken.is(Constants.PLUS)) {
+                consume();
+                return parseUnary();
+            }
+            return parsePower();
+        }
+
+        private MatrixExpression parsePower() throws SyntaxException {
+            MatrixExpression base = parsePostfix();
+            if(mToken.is(Constants.POWER)) {
+                consume();
+                // Right associative, and -2^2 is -(2^2)
+                return new BinaryOperation(Constants.POWER, base, parseUnary());
+            }
+            return base;
+        }
+
+        private MatrixExpression parsePostfix() throws SyntaxException {
+            MatrixExpression result = parsePrimary();
+            while(mToken.is('!') || mToken.is('%') || mToken.is('T') || mToken.is('I')) {
+                result = new UnaryOperation(consume().mOperator, result);
+            }
+            return result;
+        }
+
+        private MatrixExpression parsePrimary() throws SyntaxException {
+            Token token = consume();
+            switch(token.mType) {
+                case NUMBER:
+                case CONSTANT:
+                    return new Literal(token.mNumber);
+                case FUNCTION:
+                    return new FunctionCall(token.mWord, parseArgument());
+                case OPERATOR:
+                    if(token.mOperator == Constants.LEFT_PAREN) {
+                        MatrixExpression result = parseSum();
+                        // Unclosed parenthesis are closed automatically
+                        if(mToken.mType != Type.END) {
+                            expect(Constants.RIGHT_PAREN);
+                        }
+                        return result;
+                    }
+                    if(token.mOperator == '[') {
+                        return parseMatrix();
+                    }
+                    throw new SyntaxException();
+                default:
+                    throw new SyntaxException();
+            }
+        }
+
+        /**
+         * Functions apply to what immediately follows them, so sin(x)^2 is (sin(x))^2
+         * */
+        private MatrixExpression parseArgument() throws SyntaxException {
+            if(mToken.is('-')) {
+                consume();
+                return new UnaryOperation('-', parsePostfix());
+            }
+            return parsePostfix();
+        }
+
+        /**
+         * Parses [[a,b][c,d]], after the first [ has been read.
+         *
+         * Most cells are plain numbers, so those are read straight into the matrix without
+         * making tokens or nodes. Only the other cells are parsed as equations. Cells are
+         * numbered row by row, and only the ones that aren't 0 are kept, so a large matrix
+         * of mostly 0s never takes up the memory of a dense one.
+         * */
+        private MatrixExpression parseMatrix() throws SyntaxException {
+            Cells literals = new Cells();
+            Cells equations = new Cells();
+            int count = 0;
+            int rows = 0;
+            int columns = -1;
+
+            // The current token is a [ or a , and the tokenizer is right after it
+            while(mToken.is('[')) {
+                int rowStart = count;
+                do {
+                    if(mTokenizer.readLiteral()) {
+                        double value = mTokenizer.getLiteral();
+                        if(value != 0) literals.add(count, value, null);
+                        mToken = mTokenizer.next();
+                    } else {
+                        mToken = mTokenizer.next();
+                        equations.add(count, 0, parseSum());
+                    }
+                    count++;
+                } while(mToken.is(','));
+
+                if(!mToken.is(']')) throw new SyntaxException();
+                if(columns == -1) columns = count - rowStart;
+                else if(columns != count - rowStart) throw new SyntaxException();
+                rows++;
+                mToken = mTokenizer.next();
+            }
+            expect(']');
+            if(rows == 0) throw new SyntaxException();
+
+            return new MatrixLiteral(rows, columns, literals, equations);
+        }
+
+        private boolean startsOperand() {
+            return mToken.mType == Type.NUMBER
+                    || mToken.mType == Type.CONSTANT
+                    || mToken.mType == Type.FUNCTION
+                    || mToken.is(Constants.LEFT_PAREN)
+                    || mToken.is('[');
+        }
+
+        private Token consume() throws SyntaxException {
+            Token token = mToken;
+            mToken = mTokenizer.next();
+            return token;
+        }
+
+        private boolean consumeIf(char operator) throws SyntaxException {
+            if(mToken.is(operator)) {
+                consume();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char operator) throws SyntaxException {
+            if(!consumeIf(operator)) {
+                throw new SyntaxException();
+            }
+        }
+    }
+
+    private static class Literal extends MatrixExpression {
+        private final double mValue;
+
+        Literal(double value) {
+            mValue = value;
+        }
+
+        @Override
+        Object evaluate(MatrixModule module) {
+            return mValue;
+        }
+    }
+
+    /**
+     * Some of the cells of a matrix, by their row major index
+     * */
+    private static class Cells {
+        private int[] mIndices = new int[16];
+        private double[] mValues = new double[16];
+        private MatrixExpression[] mEquations;
+        private int mCount;
+
+        void add(int index, double value, MatrixExpression equation) {
+            if(mCount == mIndices.length) {
+                mIndices = Arrays.copyOf(mIndices, mCount * 2);
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+                if(mEquations != null) mEquations = Arrays.copyOf(mEquations, mCount * 2);
+            }
+            if(equation != null && mEquations == null) {
+                mEquations = new MatrixExpression[mIndices.length];
+            }
+            mIndices[mCount] = index;
+            mValues[mCount] = value;
+            if(equation != null) mEquations[mCount] = equation;
+            mCount++;
+        }
+    }
+
+    private static class MatrixLiteral extends MatrixExpression {
+        private final int mRows;
+        private final int mColumns;
+        // The cells that are plain numbers other than 0
+        private final Cells mLiterals;
+        // The cells that are equations
+        private final Cells mEquations;
+
+        MatrixLiteral(int rows, int columns, Cells literals, Cells equations) {
+            mRows = rows;
+            mColumns = columns;
+            mLiterals = literals;
+            mEquations = equations;
+        }
+
+        /**
+         * Returns a SparseMatrix if most of the cells are 0, and a SimpleMatrix otherwise
+         * */
+        @Override
+        Object evaluate(MatrixModule module) throws SyntaxException {
+            double[] equations = new double[mEquations.mCount];
+            for(int i = 0; i < equations.length; i++) {
+                Object cell = mEquations.mEquations[i].evaluate(module);
+                if(!(cell instanceof Double)) {
+                    // Matrices can't be nested
+                    throw new SyntaxException();
+                }
+                equations[i] = (Double) cell;
+            }
+
+            if(SparseMatrix.isSparse(mRows, mColumns, mLiterals.mCount + mEquations.mCount)) {
+                // Both lists are in row major order, so merge them
+                SparseMatrix.Builder builder = new SparseMatrix.Builder(mRows, mColumns,
+                        mLiterals.mCount + mEquations.mCount);
+                int a = 0;
+                int b = 0;
+                while(a < mLiterals.mCount || b < equations.length) {
+                    if(b == equations.length
+                            || (a < mLiterals.mCount && mLiterals.mIndices[a] < mEquations.mIndices[b])) {
+                        int index = mLiterals.mIndices[a];
+                        builder.add(index / mColumns, index % mColumns, mLiterals.mValues[a++]);
+                    } else {
+                        int index = mEquations.mIndices[b];
+                        builder.add(index / mColumns, index % mColumns, equations[b++]);
+                    }
+                }
+                return builder.build();
+            }
+
+            double[] values = new double[mRows * mColumns];
+            for(int i = 0; i < mLiterals.mCount; i++) {
+                values[mLiterals.mIndices[i]] = mLiterals.mValues[i];
+            }
+            for(int i = 0; i < equations.length; i++) {
+                values[mEquations.mIndices[i]] = equations[i];
+            }
+            return SimpleMatrix.wrap(DenseMatrix64F.wrap(mRows, mColumns, values));
+        }
+    }
+
+    private static class UnaryOperation extends MatrixExpression {
+        private final char mOperator;
+        private final MatrixExpression mOperand;
+
+        UnaryOperation(char operator, MatrixExpression operand) {
+            mOperator = operator;
+            mOperand = operand;
+        }
+
+        @Override
+        Object evaluate(MatrixModule module) throws SyntaxException {
+            Object value = mOperand.evaluate(module);
+            switch(mOperator) {
+                case '-':
+                    return module.applyNegate(value);
+                case '!':
+                    return module.applyFactorial(value);
+                case '%':
+                    return module.applyMult(value, 0.01);
+                case 'T':
+                    return module.applyTranspose(value);
+                case 'I':
+                    return module.applyInverse(value);
+                default:
+                    throw new SyntaxException();
+            }
+        }
+    }
+
+    private static class BinaryOperation extends MatrixExpression {
+        private final char mOperator;
+        private final MatrixExpression mLeft;
+        private final MatrixExpression mRight;
+
+        BinaryOperation(char operator, MatrixExpression left, MatrixExpression right) {
+            mOperator = operator;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        Object evaluate(MatrixModule module) throws SyntaxException {
+            Object left = mLeft.evaluate(module);
+            Object right = mRight.evaluate(module);
+            switch(mOperator) {
+                case Constants.PLUS:
+                    return module.applyPlus(left, right);
+                case '-':
+                    return module.applySub(left, right);
+                case Constants.MUL:
+                    return module.applyMult(left, right);
+                case Constants.DIV:
+                    return module.applyDiv(left, right);
+                case Constants.POWER:
+                    return module.applyPow(left, right);
+                default:
+                    throw new SyntaxException();
+            }
+        }
+    }
+
+    private static class FunctionCall extends MatrixExpression {
+        private final String mFunction;
+        private final MatrixExpression mArgument;
+
+        FunctionCall(String function, MatrixExpression argument) {
+            mFunction = function;
+            mArgument = argument;
+        }
+
+        @Override
+        Object evaluate(MatrixModule module) throws SyntaxException {
+            return module.applyFunc(mFunction, mArgument.evaluate(module));
+        }
+    }
+}
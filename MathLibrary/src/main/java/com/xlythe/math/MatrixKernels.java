@@ -0,0 +1,319 @@
+package com.xlythe.math;
+
+import org.ejml.alg.dense.mult.MatrixDimensionException;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Dense matrix operations that work directly on the row major double[] behind a SimpleMatrix.
+ *
+ * Multiplication is done in blocks small enough to stay in the CPU cache, and inversion and
+ * determinants go through an LU decomposition with partial pivoting. Once a matrix is big
+ * enough, the rows of the result are split into panels and computed on every core.
+ *
+ * Small matrices (which is nearly everything typed into a calculator) are left to EJML, as
+ * are the decompositions this doesn't cover (ie. the pseudo inverse of a singular or non
+ * square matrix).
+ */
+final class MatrixKernels {
+    // Below this many multiply-adds, EJML is just as fast
+    private static final long BLOCKED_THRESHOLD = 32 * 32 * 32;
+    // Below this many multiply-adds, starting threads costs more than it saves
+    private static final long PARALLEL_THRESHOLD = 96 * 96 * 96;
+    // Matrices smaller than this are inverted by EJML
+    private static final int LU_THRESHOLD = 32;
+    // A block of B, 64 rows of 256 doubles, fits in a typical 128KB L2 cache
+    private static final int ROW_BLOCK = 64;
+    private static final int COLUMN_BLOCK = 256;
+    // Each panel gets at least this many rows (or columns), so threads have real work to do
+    private static final int MIN_PANEL = 8;
+    // Pivots smaller than this, relative to the largest cell times the size, are treated as 0
+    private static final double SINGULAR_TOLERANCE = 1e-12;
+
+    private MatrixKernels() {}
+
+    /**
+     * Returns A×B
+     * */
+    static SimpleMatrix multiply(SimpleMatrix a, SimpleMatrix b) {
+        final int m = a.numRows();
+        final int n = a.numCols();
+        final int p = b.numCols();
+        if(n != b.numRows()) {
+            throw new MatrixDimensionException("The inner dimensions don't match");
+        }
+        long work = (long) m * n * p;
+        if(work < BLOCKED_THRESHOLD) {
+            return a.mult(b);
+        }
+
+        final double[] left = a.getMatrix().data;
+        final double[] right = b.getMatrix().data;
+        final double[] result = new double[m * p];
+        if(work < PARALLEL_THRESHOLD) {
+            multiplyRows(left, right, result, n, p, 0, m);
+        } else {
+            Panels.forEach(m, MIN_PANEL, new Panels.Panel() {
+                @Override
+                public void run(int start, int end) {
+                    multiplyRows(left, right, result, n, p, start, end);
+                }
+            });
+        }
+        return wrap(m, p, result);
+    }
+
+    /**
+     * Fills rows [start, end) of C = A×B, where A is ?×n and B is n×p
+     * */
+    private static void multiplyRows(double[] a, double[] b, double[] c, int n, int p, int start, int end) {
+        for(int kk = 0; kk < n; kk += ROW_BLOCK) {
+            int kEnd = Math.min(kk + ROW_BLOCK, n);
+            for(int jj = 0; jj < p; jj += COLUMN_BLOCK) {
+                int jEnd = Math.min(jj + COLUMN_BLOCK, p);
+                for(int i = start; i < end; i++) {
+                    int aRow = i * n;
+                    int cRow = i * p;
+                    for(int k = kk; k < kEnd; k++) {
+                        // Walk B and C along their rows, which are contiguous in memory
+                        double aik = a[aRow + k];
+                        int bRow = k * p;
+                        for(int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += aik * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the scalar to every cell of A, in place, and returns A
+     * */
+    static SimpleMatrix addScalar(SimpleMatrix a, double scalar) {
+        double[] data = a.getMatrix().data;
+        int size = a.getNumElements();
+        for(int i = 0; i < size; i++) {
+            data[i] += scalar;
+        }
+        return a;
+    }
+
+    /**
+     * Multiplies every cell of A by the scalar, in place, and returns A
+     * */
+    static SimpleMatrix scale(SimpleMatrix a, double scalar) {
+        double[] data = a.getMatrix().data;
+        int size = a.getNumElements();
+        for(int i = 0; i < size; i++) {
+            data[i] *= scalar;
+        }
+        return a;
+    }
+
+    /**
+     * Returns the determinant of a square matrix
+     * */
+    static double determinant(SimpleMatrix a) {
+        if(a.numRows() < LU_THRESHOLD) {
+            // EJML is just as fast here, and expands the smallest ones by minors
+            return a.determinant();
+        }
+        return new LU(a).determinant();
+    }
+
+    /**
+     * Returns A^-1, or null if A is singular
+     * */
+    static SimpleMatrix invert(SimpleMatrix a) {
+        if(a.numRows() != a.numCols()) {
+            throw new MatrixDimensionException("Only square matrices can be inverted");
+        }
+        if(a.numRows() < LU_THRESHOLD) {
+            SimpleMatrix inverse;
+            try {
+                inverse = a.invert();
+            } catch(RuntimeException e) {
+                // SingularMatrixException
+                return null;
+            }
+            // Singular, but not caught by LU
+            return inverse.hasUncountable() ? null : inverse;
+        }
+
+        LU lu = new LU(a);
+        return lu.isSingular() ? null : lu.inverse();
+    }
+
+    /**
+     * Returns the Moore-Penrose inverse of A. That's A^-1 whenever A has an inverse,
+     * so large square matrices are inverted through LU and everything else goes to EJML's SVD.
+     * */
+    static SimpleMatrix pseudoInverse(SimpleMatrix a) {
+        if(a.numRows() == a.numCols() && a.numRows() >= LU_THRESHOLD) {
+            LU lu = new LU(a);
+            if(!lu.isSingular()) {
+                SimpleMatrix inverse = lu.inverse();
+                if(!inverse.hasUncountable()) return inverse;
+            }
+        }
+        // Singular (or not square), which only the SVD handles
+        return a.pseudoInverse();
+    }
+
+    /**
+     * Returns how small an LU pivot can be before the matrix is treated as singular. On a
+     * singular matrix, elimination leaves pivots of around 1e-14 × the largest cell rather
+     * than exact 0s, so the tolerance is relative to it with room to spare (like EJML's).
+     * */
+    static double singularTolerance(int n, double largest) {
+        return Math.max(1, n) * largest * SINGULAR_TOLERANCE;
+    }
+
+    private static SimpleMatrix wrap(int rows, int columns, double[] data) {
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(rows, columns, data));
+    }
+
+    /**
+     * PA = LU, stored in place. L is below the diagonal (its diagonal is all 1s), U is on and
+     * above it.
+     * */
+    private static class LU {
+        private final int mSize;
+        private final double[] mLU;
+        private final int[] mPivots;
+        private final boolean mSingular;
+        private int mSign = 1;
+
+        LU(SimpleMatrix a) {
+            int n = mSize = a.numRows();
+            double[] lu = mLU = a.getMatrix().data.clone();
+            int[] pivots = mPivots = new int[n];
+            for(int i = 0; i < n; i++) {
+                pivots[i] = i;
+            }
+
+            double largest = 0;
+            for(int i = 0; i < n * n; i++) {
+                largest = Math.max(largest, Math.abs(lu[i]));
+            }
+            double tolerance = singularTolerance(n, largest);
+
+            boolean singular = false;
+            for(int k = 0; k < n; k++) {
+                // Use the row with the largest value in this column
+                int pivot = k;
+                for(int i = k + 1; i < n; i++) {
+                    if(Math.abs(lu[i * n + k]) > Math.abs(lu[pivot * n + k])) pivot = i;
+                }
+                if(pivot != k) {
+                    swapRows(lu, n, pivot, k);
+                    int temp = pivots[pivot];
+                    pivots[pivot] = pivots[k];
+                    pivots[k] = temp;
+                    mSign = -mSign;
+                }
+
+                double diagonal = lu[k * n + k];
+                if(Math.abs(diagonal) <= tolerance) {
+                    singular = true;
+                    if(diagonal == 0) continue;
+                }
+
+                // Eliminate the column below the diagonal, one row at a time
+                for(int i = k + 1; i < n; i++) {
+                    int row = i * n;
+                    double factor = lu[row + k] /= diagonal;
+                    if(factor == 0) continue;
+                    int pivotRow = k * n;
+                    for(int j = k + 1; j < n; j++) {
+                        lu[row + j] -= factor * lu[pivotRow + j];
+                    }
+                }
+            }
+            mSingular = singular;
+        }
+
+        boolean isSingular() {
+            return mSingular;
+        }
+
+        double determinant() {
+            double determinant = mSign;
+            for(int i = 0; i < mSize; i++) {
+                determinant *= mLU[i * mSize + i];
+            }
+            return determinant;
+        }
+
+        /**
+         * Solves A x = e for every column e of the identity. Each column is independent, so
+         * large matrices solve their columns in parallel.
+         * */
+        SimpleMatrix inverse() {
+            final int n = mSize;
+            final double[] result = new double[n * n];
+            Panels.Panel panel = new Panels.Panel() {
+                @Override
+                public void run(int start, int end) {
+                    double[] column = new double[n];
+                    for(int j = start; j < end; j++) {
+                        solveColumn(j, column);
+                        for(int i = 0; i < n; i++) {
+                            result[i * n + j] = column[i];
+                        }
+                    }
+                }
+            };
+            if((long) n * n * n < PARALLEL_THRESHOLD) {
+                panel.run(0, n);
+            } else {
+                Panels.forEach(n, MIN_PANEL, panel);
+            }
+            return wrap(n, n, result);
+        }
+
+        /**
+         * Writes column j of A^-1 into x
+         * */
+        private void solveColumn(int j, double[] x) {
+            int n = mSize;
+            double[] lu = mLU;
+
+            // P e_j, then forward substitution through L. Everything above row j stays 0.
+            int first = -1;
+            for(int i = 0; i < n; i++) {
+                x[i] = mPivots[i] == j ? 1 : 0;
+                if(first == -1 && x[i] != 0) first = i;
+            }
+            for(int i = first + 1; i < n; i++) {
+                int row = i * n;
+                double sum = x[i];
+                for(int k = first; k < i; k++) {
+                    sum -= lu[row + k] * x[k];
+                }
+                x[i] = sum;
+            }
+
+            // Back substitution through U
+            for(int i = n - 1; i >= 0; i--) {
+                int row = i * n;
+                double sum = x[i];
+                for(int k = i + 1; k < n; k++) {
+                    sum -= lu[row + k] * x[k];
+                }
+                x[i] = sum / lu[row + i];
+            }
+        }
+
+        private static void swapRows(double[] data, int n, int a, int b) {
+            int rowA = a * n;
+            int rowB = b * n;
+            for(int j = 0; j < n; j++) {
+                double temp = data[rowA + j];
+                data[rowA + j] = data[rowB + j];
+                data[rowB + j] = temp;
+            }
+        }
+    }
+}
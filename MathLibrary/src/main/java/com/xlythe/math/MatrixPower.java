@@ -0,0 +1,192 @@
+package com.xlythe.math;
+
+import org.ejml.data.Complex64F;
+import org.ejml.simple.SimpleEVD;
+import org.ejml.simple.SimpleMatrix;
+import org.javia.arity.SyntaxException;
+
+/**
+ * Raises square matrices to a power.
+ *
+ * Whole exponents use exponentiation by squaring, so A^1000000 takes 20 multiplications
+ * instead of a million. Negative exponents invert the matrix once (through LU) and then
+ * raise that.
+ *
+ * Fractional (and enormous) exponents go through the eigendecomposition A = V D V^-1, so
+ * A^b = V D^b V^-1. That only works if A is diagonalizable with real eigenvalues; anything
+ * else is a SyntaxException rather than a wrong answer.
+ *
+ * Inverses, eigendecompositions and squares come from a DecompositionCache, so raising the
+ * same matrix again (or to a different power) reuses them.
+ */
+final class MatrixPower {
+    // Above this, squaring would take more products than the decomposition is worth
+    private static final double MAX_SQUARING_EXPONENT = 1L << 62;
+    // Eigenvectors this close to dependent can't be trusted to rebuild the matrix
+    private static final double MAX_CONDITION = 1e12;
+    // Imaginary parts this small are rounding errors
+    private static final double EPSILON = 1e-10;
+    // How far off A v = λ v can be before an eigenvector is rejected
+    private static final double TOLERANCE = 1e-8;
+
+    private MatrixPower() {}
+
+    /**
+     * Returns A^exponent
+     * */
+    static SimpleMatrix pow(DecompositionCache cache, SimpleMatrix a, double exponent) throws SyntaxException {
+        checkSquare(a);
+        if(Double.isNaN(exponent) || Double.isInfinite(exponent)) {
+            throw new SyntaxException();
+        }
+
+        if(exponent == Math.floor(exponent) && Math.abs(exponent) < MAX_SQUARING_EXPONENT) {
+            long n = (long) exponent;
+            if(n < 0) {
+                a = invert(cache, a);
+                n = -n;
+            }
+            return powBySquaring(cache, a, n);
+        }
+
+        Eigen eigen = cache.eigen(a);
+        double[] values = eigen.getValues();
+        for(int i = 0; i < values.length; i++) {
+            if(values[i] < 0 && exponent != Math.floor(exponent)) {
+                // The root of a negative eigenvalue is complex
+                throw new SyntaxException();
+            }
+            values[i] = Math.pow(values[i], exponent);
+        }
+        return eigen.compose(values);
+    }
+
+    /**
+     * Returns base^A, which is V base^D V^-1
+     * */
+    static SimpleMatrix exp(DecompositionCache cache, double base, SimpleMatrix a) throws SyntaxException {
+        checkSquare(a);
+        if(base <= 0) {
+            throw new SyntaxException();
+        }
+
+        Eigen eigen = cache.eigen(a);
+        double[] values = eigen.getValues();
+        for(int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(base, values[i]);
+        }
+        return eigen.compose(values);
+    }
+
+    /**
+     * Returns the matrix whose cube is A. Unlike other fractional powers, negative
+     * eigenvalues are fine.
+     * */
+    static SimpleMatrix cbrt(DecompositionCache cache, SimpleMatrix a) throws SyntaxException {
+        checkSquare(a);
+
+        Eigen eigen = cache.eigen(a);
+        double[] values = eigen.getValues();
+        for(int i = 0; i < values.length; i++) {
+            values[i] = Math.cbrt(values[i]);
+        }
+        return eigen.compose(values);
+    }
+
+    static SimpleMatrix invert(DecompositionCache cache, SimpleMatrix a) throws SyntaxException {
+        checkSquare(a);
+        SimpleMatrix inverse = cache.invert(a);
+        if(inverse == null) {
+            throw new SyntaxException();
+        }
+        return inverse;
+    }
+
+    private static SimpleMatrix powBySquaring(DecompositionCache cache, SimpleMatrix a, long n) {
+        if(n == 0) {
+            return SimpleMatrix.identity(a.numRows());
+        }
+
+        // A^(2^i) for every bit of n
+        SimpleMatrix[] squares = cache.squares(a, 64 - Long.numberOfLeadingZeros(n));
+        SimpleMatrix result = null;
+        for(int i = 0; i < squares.length; i++) {
+            if((n >> i & 1) == 1) {
+                result = result == null ? squares[i] : MatrixKernels.multiply(result, squares[i]);
+            }
+        }
+        // A power of 2 is one of the squares, which still belong to the cache
+        return squares.length > 1 && result == squares[squares.length - 1] ? result.copy() : result;
+    }
+
+    private static void checkSquare(SimpleMatrix a) throws SyntaxException {
+        if(a.numRows() != a.numCols()) {
+            throw new SyntaxException();
+        }
+    }
+
+    /**
+     * A = V D V^-1, for a diagonalizable matrix with real eigenvalues
+     * */
+    static class Eigen {
+        private final SimpleMatrix mVectors;
+        private final SimpleMatrix mInverseVectors;
+        private final double[] mValues;
+
+        Eigen(SimpleMatrix a) throws SyntaxException {
+            int n = a.numRows();
+            SimpleEVD<SimpleMatrix> decomp = new SimpleEVD<SimpleMatrix>(a.getMatrix());
+            mVectors = new SimpleMatrix(n, n);
+            mValues = new double[n];
+            for(int i = 0; i < n; i++) {
+                Complex64F value = decomp.getEigenvalue(i);
+                SimpleMatrix vector = decomp.getEigenVector(i);
+                if(Math.abs(value.getImaginary()) > EPSILON * Math.max(1, value.getMagnitude()) || vector == null) {
+                    throw new SyntaxException();
+                }
+                mValues[i] = value.getReal();
+
+                // The decomposition doesn't always notice when a matrix is defective, so make
+                // sure A v = λ v actually holds
+                double residual = a.mult(vector).minus(vector.scale(mValues[i])).normF();
+                if(residual > TOLERANCE * Math.max(1, a.normF()) * vector.normF()) {
+                    throw new SyntaxException();
+                }
+
+                // Eigenvectors are the columns of V
+                for(int j = 0; j < n; j++) {
+                    mVectors.set(j, i, vector.get(j, 0));
+                }
+            }
+
+            if(mVectors.conditionP2() > MAX_CONDITION) {
+                // Not diagonalizable
+                throw new SyntaxException();
+            }
+            mInverseVectors = MatrixKernels.invert(mVectors);
+            if(mInverseVectors == null) {
+                throw new SyntaxException();
+            }
+        }
+
+        /**
+         * A copy of the eigenvalues, in the same order as the eigenvectors
+         * */
+        double[] getValues() {
+            return mValues.clone();
+        }
+
+        /**
+         * Returns V diag(values) V^-1
+         * */
+        SimpleMatrix compose(double[] values) {
+            SimpleMatrix scaled = mVectors.copy();
+            for(int i = 0; i < scaled.numRows(); i++) {
+                for(int j = 0; j < scaled.numCols(); j++) {
+                    scaled.set(i, j, scaled.get(i, j) * values[j]);
+                }
+            }
+            return MatrixKernels.multiply(scaled, mInverseVectors);
+        }
+    }
+}
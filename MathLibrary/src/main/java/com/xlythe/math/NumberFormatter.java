@@ -0,0 +1,365 @@
+package com.xlythe.math;
+
+import org.javia.arity.SyntaxException;
+
+import java.math.BigInteger;
+
+/**
+ * Formats doubles for the display.
+ *
+ * Produces the same text as formatting with String.format("%.Pg") and then stripping
+ * unnecessary 0's, trying every precision from the line length down to 7. Instead of
+ * formatting the number once per precision, the digits are generated once and rounded in place.
+ *
+ * The digits are the shortest that read back as the same double, found with Schubfach
+ * (Giulietti, "The Schubfach way to render doubles") using only long arithmetic.
+ *
+ * Reuses its buffers, so an instance is not thread safe.
+ */
+public class NumberFormatter {
+    // The smallest precision we'll format to before giving up on fitting the line
+    private static final int MIN_PRECISION = 7;
+
+    // Same as what String.format uses to switch between 0.0001 and 1e-5
+    private static final int MIN_DECIMAL_EXPONENT = -4;
+
+    // Largest number of digits in a double, plus room for carrying a 1
+    private static final int MAX_DIGITS = 32;
+
+    // Bits in the significand of a double, including the hidden 1
+    private static final int P = 53;
+    // Exponent of the smallest subnormal double, as a multiple of its significand
+    private static final int Q_MIN = -1074;
+    // The hidden 1, and the bits stored after it
+    private static final long C_MIN = 1L << (P - 1);
+    private static final long T_MASK = C_MIN - 1;
+    // Subnormals below this get an extra digit, so their neighbours can be told apart
+    private static final int C_TINY = 3;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    // Range of k in 10^k that a double's digits can be scaled by
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    // The top and bottom 63 bits of floor(10^-k 2^r) + 1, scaled to 126 bits, for every k.
+    // Computed once when the class loads, which is the only time BigInteger is used.
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+    static {
+        BigInteger ten = BigInteger.valueOf(10);
+        BigInteger mask = BigInteger.valueOf(MASK_63);
+        for(int k = K_MIN; k <= K_MAX; k++) {
+            int r = 125 - flog2pow10(-k);
+            BigInteger g;
+            if(k <= 0) {
+                BigInteger power = ten.pow(-k);
+                g = r >= 0 ? power.shiftLeft(r) : power.shiftRight(-r);
+            } else {
+                g = BigInteger.ONE.shiftLeft(r).divide(ten.pow(k));
+            }
+            g = g.add(BigInteger.ONE);
+            int i = 2 * (k - K_MIN);
+            G[i] = g.shiftRight(63).longValue();
+            G[i + 1] = g.and(mask).longValue();
+        }
+    }
+
+    // The shortest digits that represent the value (no leading or trailing 0's)
+    private final char[] mDigits = new char[MAX_DIGITS];
+    private int mDigitCount;
+    // Scientific exponent of the first digit. eg. 123 has an exponent of 2
+    private int mExponent;
+
+    // The digits after rounding to a specific precision
+    private final char[] mRounded = new char[MAX_DIGITS];
+    private int mRoundedCount;
+    private int mRoundedExponent;
+
+    // Where the final text is written
+    private char[] mOutput = new char[MAX_DIGITS * 2];
+
+    /**
+     * Formats the value so that it fits in lineLength characters, if possible.
+     * Returns an empty string if lineLength is too small to try any precision.
+     * */
+    public String format(double value, int lineLength) throws SyntaxException {
+        if(lineLength < MIN_PRECISION) {
+            return "";
+        }
+        if(Double.isNaN(value)) {
+            throw new SyntaxException();
+        }
+        if(Double.isInfinite(value)) {
+            return value > 0 ? Constants.INFINITY : "-" + Constants.INFINITY;
+        }
+
+        boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+        generateDigits(Math.abs(value));
+
+        int length = 0;
+        for(int precision = lineLength; precision >= MIN_PRECISION; precision--) {
+            round(precision);
+            length = write(negative, precision);
+            if(length <= lineLength) {
+                break;
+            }
+        }
+        return new String(mOutput, 0, length);
+    }
+
+    /**
+     * Fills mDigits with the shortest digits that uniquely represent the value.
+     * If more than one is shortest, picks the closest (ties to even).
+     * */
+    private void generateDigits(double value) {
+        mDigitCount = 0;
+        mExponent = 0;
+        if(value == 0) {
+            mDigits[mDigitCount++] = '0';
+            return;
+        }
+
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & 0x7ff;
+        if(bq == 0) {
+            // Subnormal
+            if(t < C_TINY) {
+                generateDigits(Q_MIN, 10 * t, -1);
+            } else {
+                generateDigits(Q_MIN, t, 0);
+            }
+            return;
+        }
+
+        int q = Q_MIN - 1 + bq;
+        long c = C_MIN | t;
+        if(0 < -q && -q < P) {
+            // Whole numbers are their own shortest digits
+            long f = c >> -q;
+            if(f << -q == c) {
+                setDigits(f, 0);
+                return;
+            }
+        }
+        generateDigits(q, c, 0);
+    }
+
+    /**
+     * Finds the shortest digits for c 2^q. The result is scaled down by 10^dk.
+     * */
+    private void generateDigits(int q, long c, int dk) {
+        // Bounds of the values that read back as c 2^q, 4 times over so they're whole numbers
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if(c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // The gap below a power of 2 is half the size of the gap above it
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        // Everything scaled by 10^-k, so the digits we're after are whole numbers
+        int i = 2 * (k - K_MIN);
+        long g1 = G[i];
+        long g0 = G[i + 1];
+        long vb = roundToOdd(g1, g0, cb << h);
+        long vbl = roundToOdd(g1, g0, cbl << h);
+        long vbr = roundToOdd(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if(s >= 10) {
+            // Try one digit less first: s / 10, computed as s * (2^64 / 10) / 2^64
+            long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if(upin != wpin) {
+                setDigits(upin ? sp10 : tp10, k + dk);
+                return;
+            }
+        }
+
+        long tp = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (tp << 2) + out <= vbr;
+        if(uin != win) {
+            setDigits(uin ? s : tp, k + dk);
+            return;
+        }
+
+        // Both (or neither) read back as the value, so pick the closest
+        long cmp = vb - (s + tp << 1);
+        setDigits(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : tp, k + dk);
+    }
+
+    /**
+     * Writes f 10^e into mDigits and mExponent.
+     * */
+    private void setDigits(long f, int e) {
+        // Trailing 0's don't count as digits
+        while(f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+
+        int count = 0;
+        for(long n = f; n != 0; n /= 10) {
+            count++;
+        }
+        for(int i = count - 1; i >= 0; i--) {
+            mDigits[i] = (char) ('0' + f % 10);
+            f /= 10;
+        }
+        mDigitCount = count;
+        mExponent = e + count - 1;
+    }
+
+    /**
+     * Returns g cp / 2^127 (where g = g1 2^63 + g0), rounded to odd.
+     * */
+    private static long roundToOdd(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * The top 64 bits of the 128 bit product x y. Math.multiplyHigh isn't available on Android.
+     * */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    // floor(e log10(2))
+    private static int flog10pow2(int e) {
+        return (int) (e * 661971961083L >> 41);
+    }
+
+    // floor(log10(3/4 2^e))
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661971961083L - 274743187321L >> 41);
+    }
+
+    // floor(e log2(10))
+    private static int flog2pow10(int e) {
+        return (int) (e * 913124641741L >> 38);
+    }
+
+    /**
+     * Rounds mDigits (half up) into mRounded, keeping at most precision digits.
+     * */
+    private void round(int precision) {
+        mRoundedExponent = mExponent;
+        if(mDigitCount <= precision) {
+            System.arraycopy(mDigits, 0, mRounded, 0, mDigitCount);
+            mRoundedCount = mDigitCount;
+            return;
+        }
+
+        System.arraycopy(mDigits, 0, mRounded, 0, precision);
+        mRoundedCount = precision;
+        if(mDigits[precision] >= '5') {
+            int i = precision - 1;
+            while(i >= 0 && mRounded[i] == '9') {
+                mRounded[i] = '0';
+                i--;
+            }
+            if(i >= 0) {
+                mRounded[i]++;
+            } else {
+                // 999 rounded up to 1000
+                mRounded[0] = '1';
+                mRoundedCount = 1;
+                mRoundedExponent++;
+            }
+        }
+
+        // Strip trailing 0's
+        while(mRoundedCount > 1 && mRounded[mRoundedCount - 1] == '0') {
+            mRoundedCount--;
+        }
+    }
+
+    /**
+     * Writes mRounded into mOutput and returns the length.
+     * */
+    private int write(boolean negative, int precision) {
+        ensureCapacity(precision + MAX_DIGITS);
+
+        int pos = 0;
+        if(negative) {
+            mOutput[pos++] = '-';
+        }
+
+        if(mRoundedExponent >= MIN_DECIMAL_EXPONENT && mRoundedExponent < precision) {
+            if(mRoundedExponent >= 0) {
+                // 123.45
+                int wholeDigits = mRoundedExponent + 1;
+                for(int i = 0; i < wholeDigits; i++) {
+                    mOutput[pos++] = i < mRoundedCount ? mRounded[i] : '0';
+                }
+                if(mRoundedCount > wholeDigits) {
+                    mOutput[pos++] = '.';
+                    for(int i = wholeDigits; i < mRoundedCount; i++) {
+                        mOutput[pos++] = mRounded[i];
+                    }
+                }
+            } else if(mRoundedCount == 1 && mRounded[0] == '0') {
+                // Only happens for 0 itself
+                mOutput[pos++] = '0';
+            } else {
+                // 0.0012345
+                mOutput[pos++] = '0';
+                mOutput[pos++] = '.';
+                for(int i = -1; i > mRoundedExponent; i--) {
+                    mOutput[pos++] = '0';
+                }
+                for(int i = 0; i < mRoundedCount; i++) {
+                    mOutput[pos++] = mRounded[i];
+                }
+            }
+        } else {
+            // 1.2345e-12
+            mOutput[pos++] = mRounded[0];
+            if(mRoundedCount > 1) {
+                mOutput[pos++] = '.';
+                for(int i = 1; i < mRoundedCount; i++) {
+                    mOutput[pos++] = mRounded[i];
+                }
+            }
+            mOutput[pos++] = 'e';
+            int exponent = mRoundedExponent;
+            if(exponent < 0) {
+                mOutput[pos++] = '-';
+                exponent = -exponent;
+            }
+            if(exponent >= 100) mOutput[pos++] = (char) ('0' + exponent / 100);
+            if(exponent >= 10) mOutput[pos++] = (char) ('0' + (exponent / 10) % 10);
+            mOutput[pos++] = (char) ('0' + exponent % 10);
+        }
+        return pos;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(mOutput.length < capacity) {
+            mOutput = new char[capacity];
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.xlythe.math;
+
+/**
+ * Splits an equation into alternating runs of numbers and everything else (operators,
+ * functions, parenthesis) in a single pass.
+ *
+ * A number is anything Constants.REGEX_NUMBER would match: 0-9, A-F, the decimal point and
+ * the grouping separators. Optionally, BaseModule.SELECTION_HANDLE is treated as part of a
+ * number so that the cursor travels with the digits around it.
+ *
+ * ie. sin(12.5)+A1 becomes "sin(", "12.5", ")+", "A1"
+ *
+ * Usage:
+ * NumberLexer lexer = new NumberLexer(text, false);
+ * while(lexer.next()) {
+ *     if(lexer.isNumber()) ...
+ * }
+ */
+public class NumberLexer {
+    private final CharSequence mText;
+    private final boolean mIncludeSelectionHandle;
+
+    // Read once, in case Constants are rebuilt while we're lexing
+    private final char mDecimalPoint;
+    private final char mDecimalSeparator;
+    private final char mBinarySeparator;
+    private final char mHexadecimalSeparator;
+
+    private int mStart;
+    private int mEnd;
+    private boolean mIsNumber;
+
+    public NumberLexer(CharSequence text, boolean includeSelectionHandle) {
+        mText = text;
+        mIncludeSelectionHandle = includeSelectionHandle;
+        mDecimalPoint = Constants.DECIMAL_POINT;
+        mDecimalSeparator = Constants.DECIMAL_SEPARATOR;
+        mBinarySeparator = Constants.BINARY_SEPARATOR;
+        mHexadecimalSeparator = Constants.HEXADECIMAL_SEPARATOR;
+    }
+
+    /**
+     * Moves to the next token. Returns false once the end of the text is reached.
+     * */
+    public boolean next() {
+        mStart = mEnd;
+        if(mStart >= mText.length()) {
+            return false;
+        }
+
+        mIsNumber = isNumber(mText.charAt(mStart));
+        mEnd = mStart + 1;
+        while(mEnd < mText.length() && isNumber(mText.charAt(mEnd)) == mIsNumber) {
+            mEnd++;
+        }
+        return true;
+    }
+
+    /**
+     * True if the current token is a number, false if it's an operator (or function, etc)
+     * */
+    public boolean isNumber() {
+        return mIsNumber;
+    }
+
+    /**
+     * The index of the first character of the current token
+     * */
+    public int getStart() {
+        return mStart;
+    }
+
+    /**
+     * The index after the last character of the current token
+     * */
+    public int getEnd() {
+        return mEnd;
+    }
+
+    public String getToken() {
+        return mText.subSequence(mStart, mEnd).toString();
+    }
+
+    public boolean isNumber(char c) {
+        return (c >= '0' && c <= '9')
+                || (c >= 'A' && c <= 'F')
+                || c == mDecimalPoint
+                || c == mDecimalSeparator
+                || c == mBinarySeparator
+                || c == mHexadecimalSeparator
+                || (mIncludeSelectionHandle && c == BaseModule.SELECTION_HANDLE);
+    }
+}
@@ -0,0 +1,355 @@
+package com.xlythe.math;
+
+import org.javia.arity.SyntaxException;
+
+import java.util.Arrays;
+
+/**
+ * A list of numbers, like a column pasted from a spreadsheet.
+ *
+ * Backed by a double[], so a list of 100k values is 800KB instead of 100k Doubles (or a
+ * 1×100k matrix string). Arithmetic is element-wise, and every statistic is a single pass
+ * over the values. The median and percentiles use selection instead of sorting.
+ *
+ * Immutable.
+ */
+public final class NumberList {
+    private final double[] mValues;
+
+    public NumberList(double[] values) {
+        this(values, false);
+    }
+
+    /**
+     * Uses the array as is if owned (it was made for this list, and nothing else writes into
+     * it), or a copy of it otherwise
+     * */
+    private NumberList(double[] values, boolean owned) {
+        mValues = owned ? values : values.clone();
+    }
+
+    /**
+     * Reads a decimal, English list of numbers. They can be split by commas, semicolons,
+     * spaces, tabs or new lines, in any mix. ie. "1, 2.5\n−3E2"
+     * */
+    public static NumberList parse(CharSequence text) throws SyntaxException {
+        return parse(text, 0, text.length());
+    }
+
+    static NumberList parse(CharSequence text, int start, int end) throws SyntaxException {
+        double[] values = new double[16];
+        int count = 0;
+        int i = start;
+        while(true) {
+            while(i < end && isSeparator(text.charAt(i))) i++;
+            if(i == end) break;
+
+            int numberStart = i;
+            while(i < end && !isSeparator(text.charAt(i))) i++;
+            if(count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = parseNumber(text, numberStart, i);
+        }
+        return new NumberList(Arrays.copyOf(values, count), true);
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == ';' || Character.isWhitespace(c);
+    }
+
+    // Powers of 10 that a double holds exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Reads a number. When both the digits and the power of 10 fit exactly in a double, one
+     * multiplication or division is correctly rounded, so Double.parseDouble() is skipped.
+     * */
+    private static double parseNumber(CharSequence text, int start, int end) throws SyntaxException {
+        int i = start;
+        boolean negative = i < end && (text.charAt(i) == Constants.MINUS || text.charAt(i) == '-');
+        if(negative) i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean decimal = false;
+        for(; i < end; i++) {
+            char c = text.charAt(i);
+            if(c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if(decimal) exponent--;
+            } else if(c == '.' && !decimal) {
+                decimal = true;
+            } else {
+                break;
+            }
+        }
+        if(i < end && digits > 0 && (text.charAt(i) == 'E' || text.charAt(i) == 'e')) {
+            int j = i + 1;
+            boolean negativeExponent = j < end && (text.charAt(j) == Constants.MINUS || text.charAt(j) == '-');
+            if(negativeExponent || (j < end && text.charAt(j) == '+')) j++;
+            int power = 0;
+            int powerDigits = 0;
+            while(j < end && text.charAt(j) >= '0' && text.charAt(j) <= '9' && powerDigits < 4) {
+                power = power * 10 + (text.charAt(j) - '0');
+                powerDigits++;
+                j++;
+            }
+            if(j == end && powerDigits > 0) {
+                exponent += negativeExponent ? -power : power;
+                i = j;
+            }
+        }
+        if(i == end && digits > 0 && digits <= 15 && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        String number = text.subSequence(start, end).toString().replace(Constants.MINUS, '-');
+        // Double.parseDouble() also reads things like "NaN" and "0x1p3", which aren't numbers here
+        for(int j = 0; j < number.length(); j++) {
+            char c = number.charAt(j);
+            if(!(c >= '0' && c <= '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                throw new SyntaxException();
+            }
+        }
+        try {
+            return Double.parseDouble(number);
+        } catch(NumberFormatException e) {
+            throw new SyntaxException();
+        }
+    }
+
+    public int size() {
+        return mValues.length;
+    }
+
+    public double get(int index) {
+        return mValues[index];
+    }
+
+    public double[] toArray() {
+        return mValues.clone();
+    }
+
+    /**
+     * Returns the values from start (inclusive) to end (exclusive)
+     * */
+    public NumberList subList(int start, int end) {
+        return new NumberList(Arrays.copyOfRange(mValues, start, end), true);
+    }
+
+    public NumberList plus(NumberList other) throws SyntaxException {
+        double[] values = copyForPair(other);
+        for(int i = 0; i < values.length; i++) {
+            values[i] += other.mValues[i];
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList minus(NumberList other) throws SyntaxException {
+        double[] values = copyForPair(other);
+        for(int i = 0; i < values.length; i++) {
+            values[i] -= other.mValues[i];
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList times(NumberList other) throws SyntaxException {
+        double[] values = copyForPair(other);
+        for(int i = 0; i < values.length; i++) {
+            values[i] *= other.mValues[i];
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList divide(NumberList other) throws SyntaxException {
+        double[] values = copyForPair(other);
+        for(int i = 0; i < values.length; i++) {
+            values[i] /= other.mValues[i];
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList plus(double scalar) {
+        double[] values = mValues.clone();
+        for(int i = 0; i < values.length; i++) {
+            values[i] += scalar;
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList times(double scalar) {
+        double[] values = mValues.clone();
+        for(int i = 0; i < values.length; i++) {
+            values[i] *= scalar;
+        }
+        return new NumberList(values, true);
+    }
+
+    public NumberList negate() {
+        return times(-1);
+    }
+
+    /**
+     * Element-wise operations need lists of the same size
+     * */
+    private double[] copyForPair(NumberList other) throws SyntaxException {
+        if(other.mValues.length != mValues.length) {
+            throw new SyntaxException();
+        }
+        return mValues.clone();
+    }
+
+    /**
+     * The sum, with the rounding error of each addition carried along (Neumaier's variant of
+     * Kahan summation), so adding 100k values is as accurate as adding a handful.
+     * */
+    public double sum() {
+        double sum = 0;
+        double compensation = 0;
+        for(double value : mValues) {
+            double total = sum + value;
+            if(Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - total) + value;
+            } else {
+                compensation += (value - total) + sum;
+            }
+            sum = total;
+        }
+        return sum + compensation;
+    }
+
+    public double mean() throws SyntaxException {
+        checkSize(1);
+        return sum() / mValues.length;
+    }
+
+    /**
+     * The sample variance, computed in one pass with Welford's method. Unlike summing
+     * squares, it doesn't lose everything to rounding when the values are large and close.
+     * */
+    public double variance() throws SyntaxException {
+        checkSize(2);
+        double mean = 0;
+        double squares = 0;
+        for(int i = 0; i < mValues.length; i++) {
+            double delta = mValues[i] - mean;
+            mean += delta / (i + 1);
+            squares += delta * (mValues[i] - mean);
+        }
+        return squares / (mValues.length - 1);
+    }
+
+    /**
+     * The sample standard deviation
+     * */
+    public double standardDeviation() throws SyntaxException {
+        return Math.sqrt(variance());
+    }
+
+    public double min() throws SyntaxException {
+        checkSize(1);
+        double min = mValues[0];
+        for(double value : mValues) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    public double max() throws SyntaxException {
+        checkSize(1);
+        double max = mValues[0];
+        for(double value : mValues) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    public double median() throws SyntaxException {
+        return percentile(50);
+    }
+
+    /**
+     * Returns the value below which the given percent of the list falls, interpolating
+     * between the two closest values (like a spreadsheet's PERCENTILE.INC).
+     * */
+    public double percentile(double percent) throws SyntaxException {
+        checkSize(1);
+        if(!(percent >= 0 && percent <= 100)) {
+            throw new SyntaxException();
+        }
+
+        double rank = percent / 100 * (mValues.length - 1);
+        int below = (int) Math.floor(rank);
+        double[] values = mValues.clone();
+        double lower = select(values, below);
+        if(below == rank) {
+            return lower;
+        }
+        // Selecting left everything after the lower value above it, so the next one is their min
+        double upper = values[below + 1];
+        for(int i = below + 2; i < values.length; i++) {
+            upper = Math.min(upper, values[i]);
+        }
+        return lower + (rank - below) * (upper - lower);
+    }
+
+    private void checkSize(int minimum) throws SyntaxException {
+        if(mValues.length < minimum) {
+            throw new SyntaxException();
+        }
+    }
+
+    /**
+     * Rearranges the values so the k-th smallest is at index k, with smaller ones before it and
+     * larger ones after (quickselect). Returns the k-th smallest value.
+     * */
+    private static double select(double[] values, int k) {
+        int left = 0;
+        int right = values.length - 1;
+        while(left < right) {
+            // The median of three as the pivot, so sorted input doesn't go quadratic
+            int middle = (left + right) >>> 1;
+            if(values[middle] < values[left]) swap(values, middle, left);
+            if(values[right] < values[left]) swap(values, right, left);
+            if(values[right] < values[middle]) swap(values, right, middle);
+            double pivot = values[middle];
+
+            int i = left;
+            int j = right;
+            while(i <= j) {
+                while(values[i] < pivot) i++;
+                while(values[j] > pivot) j--;
+                if(i <= j) {
+                    swap(values, i++, j--);
+                }
+            }
+
+            if(k <= j) {
+                right = j;
+            } else if(k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(double[] values, int a, int b) {
+        double temp = values[a];
+        values[a] = values[b];
+        values[b] = temp;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mValues);
+    }
+}
@@ -0,0 +1,103 @@
+package com.xlythe.math;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a loop into panels and runs them on every core. Shared by the matrix kernels and the
+ * graph tracer, so they don't each keep a thread per core around.
+ *
+ * Panels must not wait on other panels. Everything queued here is plain computation, so the
+ * pool can't deadlock.
+ */
+final class Panels {
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static ThreadPoolExecutor sExecutor;
+
+    private Panels() {}
+
+    /**
+     * A slice of rows (or columns) to compute, from start inclusive to end exclusive
+     * */
+    interface Panel {
+        void run(int start, int end);
+    }
+
+    /**
+     * Splits [0, count) into one panel per core, each at least minPanel long, and waits until
+     * they're all done. The calling thread computes the first panel itself rather than sitting
+     * idle.
+     * */
+    static void forEach(int count, int minPanel, final Panel panel) {
+        int panels = Math.min(THREADS, Math.max(1, count / minPanel));
+        if(panels == 1) {
+            panel.run(0, count);
+            return;
+        }
+
+        ThreadPoolExecutor executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<>(panels - 1);
+        for(int i = 1; i < panels; i++) {
+            final int start = (int) ((long) count * i / panels);
+            final int end = (int) ((long) count * (i + 1) / panels);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    panel.run(start, end);
+                }
+            }));
+        }
+        panel.run(0, count / panels);
+
+        // The other panels write into our result, so we can't leave before they're all done,
+        // even if one of them failed or we're interrupted
+        boolean interrupted = false;
+        Throwable failure = null;
+        for(Future<?> future : futures) {
+            while(true) {
+                try {
+                    future.get();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                } catch(ExecutionException e) {
+                    if(failure == null) failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * One thread per core, which go away after a few seconds without work
+     * */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if(sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREADS, THREADS, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private int mCount;
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Panels-" + mCount++);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
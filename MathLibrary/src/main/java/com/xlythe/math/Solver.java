@@ -3,32 +3,58 @@ package com.xlythe.math;
 import android.content.Context;
 
 import org.javia.arity.Complex;
+import org.javia.arity.ContextFunction;
+import org.javia.arity.EvalContext;
+import org.javia.arity.Function;
 import org.javia.arity.Symbols;
 import org.javia.arity.SyntaxException;
 
-import java.util.Locale;
-
 /**
  * Solves math problems
  *
  * Supports:
  * Basic math + functions (trig, pi)
  * Matrices
+ * Statistics over lists (mean, stdev, ...)
  * Hex and Bin conversion
+ *
+ * Threading:
+ * solve(), eval(), compile(), define(), pushFrame() and popFrame() may be called from any
+ * thread.
+ * Every thread gets its own symbol table (and arity evaluation stack), so a graph defining X
+ * in a background frame can't leak into, or block, a solve() running on the UI thread.
+ * Frames are thread confined: pop them on the same thread that pushed them.
+ * Settings (base, line length, localization) are meant to be changed from the UI thread;
+ * other threads will pick up the new values on their next call.
  */
 public class Solver {
-    // Used for solving basic math
-    private static final Symbols sSymbols = new Symbols();
+    // How many compiled equations to remember
+    private static final int CACHE_SIZE = 32;
+    private static final Complex[] NO_ARGS = new Complex[0];
+
+    // Used for solving basic math. One per thread, created on first use.
+    private final ThreadLocal<SymbolContext> mSymbolContext = new ThreadLocal<SymbolContext>() {
+        @Override
+        protected SymbolContext initialValue() {
+            return new SymbolContext();
+        }
+    };
+    // Recently compiled equations, so retyping (or re-solving) them skips the parser
+    private final ExpressionCache mCache = new ExpressionCache(CACHE_SIZE);
+    // Bumped by clearCache(), so every thread drops the values it remembered
+    private volatile int mCacheGeneration;
     private BaseModule mBaseModule;
     private MatrixModule mMatrixModule;
     private GraphModule mGraphModule;
-    private int mLineLength = 8;
-    private Localizer mLocalizer;
+    private ListModule mListModule;
+    private volatile int mLineLength = 8;
+    private volatile Localizer mLocalizer;
 
     public Solver() {
         mBaseModule = new BaseModule(this);
         mMatrixModule = new MatrixModule(this);
         mGraphModule = new GraphModule(this);
+        mListModule = new ListModule(this);
     }
 
     /**
@@ -45,7 +71,8 @@ public class Solver {
             return "";
         }
 
-        if(mLocalizer != null) input = mLocalizer.localize(input);
+        final Localizer localizer = mLocalizer;
+        if(localizer != null) input = localizer.localize(input);
 
         // Drop final operators (they can only result in error)
         int size = input.length();
@@ -54,28 +81,34 @@ public class Solver {
             --size;
         }
 
+        // Lists of numbers (ie. a pasted column) are read directly, instead of compiled
+        Double statistic = mListModule.solve(input);
+        if(statistic != null) {
+            return format(new Complex(statistic, 0), localizer);
+        }
+
+        // Binary and hex whole numbers are solved exactly, as long as the equation allows it
+        String integerResult = mBaseModule.solveInteger(input);
+        if(integerResult != null) {
+            return integerResult;
+        }
+
         // Convert to decimal
         String decimalInput = convertToDecimal(input);
 
-        Complex value = sSymbols.evalComplex(decimalInput);
-
-        String real = "";
-        for(int precision = mLineLength; precision > 6; precision--) {
-            real = tryFormattingWithPrecision(value.re, precision);
-            if(real.length() <= mLineLength) {
-                break;
-            }
-        }
+        Complex value = evalIncrementally(decimalInput);
+        return format(value, localizer);
+    }
 
-        String imaginary = "";
-        for(int precision = mLineLength; precision > 6; precision--) {
-            imaginary = tryFormattingWithPrecision(value.im, precision);
-            if(imaginary.length() <= mLineLength) {
-                break;
-            }
-        }
+    /**
+     * Formats a result in the current base and language
+     * */
+    private String format(Complex value, Localizer localizer) throws SyntaxException {
+        NumberFormatter formatter = mSymbolContext.get().mFormatter;
+        String real = formatter.format(value.re, mLineLength);
+        String imaginary = formatter.format(value.im, mLineLength);
 
-        real = clean(mBaseModule.changeBase(real, Base.DECIMAL, mBaseModule.getBase()));
+        real = clean(mBaseModule.formatResult(value.re, real));
         imaginary = clean(mBaseModule.changeBase(imaginary, Base.DECIMAL, mBaseModule.getBase()));
 
         String result = "";
@@ -89,25 +122,136 @@ public class Solver {
         else if(value.re == 0 && value.im != 0) result = imaginary + "i";
         else if(value.re == 0 && value.im == 0) result = "0";
 
-        if(mLocalizer != null) result = mLocalizer.relocalize(result);
+        if(localizer != null) result = localizer.relocalize(result);
 
         return result;
     }
 
+    /**
+     * Evaluates a decimal, English equation. The compiled form is cached, so asking for the
+     * same equation again only costs the evaluation.
+     * */
+    Complex evalComplex(String input) throws SyntaxException {
+        SymbolContext context = mSymbolContext.get();
+
+        // Anything compiled inside a frame has that frame's variables baked in, so only
+        // share equations compiled against the plain symbol table.
+        boolean cacheable = context.mFrames == 0;
+
+        Function function = cacheable ? mCache.get(input) : null;
+        if(function == null) {
+            // Symbols.evalComplex() refuses definitions and implicit functions (eg. x+1),
+            // so make sure we don't cache anything it wouldn't have solved.
+            if(Symbols.isDefinition(input)) {
+                throw new SyntaxException();
+            }
+            function = context.mSymbols.compile(input);
+            if(function.arity() != 0) {
+                throw new SyntaxException();
+            }
+            if(cacheable) mCache.put(input, function);
+        }
+
+        // Evaluate on our own stack instead of arity's global (locked) one. The result
+        // points into that stack, so copy it before anything else is evaluated.
+        if(function instanceof ContextFunction) {
+            return new Complex(((ContextFunction) function).eval(NO_ARGS, context.mEvalContext));
+        }
+        return new Complex(function.evalComplex());
+    }
+
+    /**
+     * Evaluates a decimal, English equation, reusing what's left unchanged from the
+     * previous equation solved on this thread. Typing at the end of an equation only
+     * evaluates the part that was typed.
+     * */
+    private Complex evalIncrementally(String input) throws SyntaxException {
+        SymbolContext context = mSymbolContext.get();
+
+        // Values computed inside a frame depend on that frame's variables
+        if(context.mFrames == 0) {
+            Complex value = context.mIncremental.evaluate(input, mCacheGeneration);
+            if(value != null) {
+                return value;
+            }
+        }
+        return evalComplex(input);
+    }
+
+    /**
+     * Forget all compiled equations. Call this when the meaning of an equation changes
+     * (eg. switching between radians and degrees).
+     * */
+    public void clearCache() {
+        mCache.clear();
+        mCacheGeneration++;
+    }
+
+    /**
+     * How many times solve() found an already compiled equation
+     * */
+    public int getCacheHitCount() {
+        return mCache.getHitCount();
+    }
+
+    /**
+     * How many times solve() had to compile an equation
+     * */
+    public int getCacheMissCount() {
+        return mCache.getMissCount();
+    }
+
     public double eval(String input) throws SyntaxException{
-        return sSymbols.eval(input);
+        return getSymbols().eval(input);
+    }
+
+    /**
+     * Compiles a decimal, English equation into a function of the given variables (in order),
+     * ie. compile("sin(X)*X^2", "X"), or returns null if it doesn't compile. The result can be
+     * evaluated over and over without parsing the equation again. Evaluate it against
+     * getEvalContext() when it's a ContextFunction, so threads don't share arity's global stack.
+     *
+     * An equation that doesn't compile is remembered, so asking for it again (eg. redrawing a
+     * graph) returns null without parsing it or throwing. Defining a variable forgets it.
+     * */
+    Function compile(String equation, String... variables) {
+        // Compiled as the definition f(X)=..., which makes the variables its arguments
+        StringBuilder builder = new StringBuilder("f(");
+        for(int i = 0; i < variables.length; i++) {
+            if(i > 0) builder.append(',');
+            builder.append(variables[i]);
+        }
+        String definition = builder.append(")=").append(equation).toString();
+
+        SymbolContext context = mSymbolContext.get();
+        if(definition.equals(context.mInvalid)) {
+            return null;
+        }
+        try {
+            return context.mSymbols.compileWithName(definition).function;
+        } catch(SyntaxException e) {
+            context.mInvalid = definition;
+            return null;
+        }
     }
 
     public void pushFrame() {
-        sSymbols.pushFrame();
+        SymbolContext context = mSymbolContext.get();
+        context.mSymbols.pushFrame();
+        context.mFrames++;
     }
 
     public void popFrame() {
-        sSymbols.popFrame();
+        SymbolContext context = mSymbolContext.get();
+        context.mSymbols.popFrame();
+        context.mFrames--;
     }
 
     public void define(String var, double val) {
-        sSymbols.define(var, val);
+        SymbolContext context = mSymbolContext.get();
+        context.mSymbols.define(var, val);
+        // A new name can make the equation that failed to compile valid
+        context.mInvalid = null;
     }
 
     public static boolean equal(String a, String b) {
@@ -151,52 +295,9 @@ public class Solver {
         return mBaseModule.changeBase(input, mBaseModule.getBase(), Base.DECIMAL);
     }
 
-    String tryFormattingWithPrecision(double value, int precision) throws SyntaxException {
-        if (Double.isNaN(value)) {
-            throw new SyntaxException();
-        }
-
-        // The standard scientific formatter is basically what we need. We will
-        // start with what it produces and then massage it a bit.
-        String result = String.format(Locale.US, "%" + mLineLength + "." + precision + "g", value);
-        String mantissa = result;
-        String exponent = null;
-        int e = result.indexOf('e');
-        if(e != -1) {
-            mantissa = result.substring(0, e);
-
-            // Strip "+" and unnecessary 0's from the exponent
-            exponent = result.substring(e + 1);
-            if(exponent.startsWith("+")) {
-                exponent = exponent.substring(1);
-            }
-            exponent = String.valueOf(Integer.parseInt(exponent));
-        }
-
-        int period = mantissa.indexOf('.');
-        if(period == -1) {
-            period = mantissa.indexOf(',');
-        }
-        if(period != -1) {
-            // Strip trailing 0's
-            while(mantissa.length() > 0 && mantissa.endsWith("0")) {
-                mantissa = mantissa.substring(0, mantissa.length() - 1);
-            }
-            if(mantissa.length() == period + 1) {
-                mantissa = mantissa.substring(0, mantissa.length() - 1);
-            }
-        }
-
-        if(exponent != null) {
-            result = mantissa + 'e' + exponent;
-        } else {
-            result = mantissa;
-        }
-        return result;
-    }
-
     public void enableLocalization(Context context, Class r) {
         mLocalizer = new Localizer(context, r);
+        clearCache();
     }
 
     public void setLineLength(int length) {
@@ -223,7 +324,34 @@ public class Solver {
         return mGraphModule;
     }
 
+    public ListModule getListModule() {
+        return mListModule;
+    }
+
+    /**
+     * Returns the symbol table for the calling thread
+     * */
     public Symbols getSymbols() {
-        return sSymbols;
+        return mSymbolContext.get().mSymbols;
+    }
+
+    /**
+     * Returns the arity evaluation stack for the calling thread
+     * */
+    EvalContext getEvalContext() {
+        return mSymbolContext.get().mEvalContext;
+    }
+
+    /**
+     * Everything a single thread needs to evaluate equations without sharing state
+     * */
+    private static class SymbolContext {
+        final Symbols mSymbols = new Symbols();
+        final EvalContext mEvalContext = new EvalContext();
+        final NumberFormatter mFormatter = new NumberFormatter();
+        final IncrementalEvaluator mIncremental = new IncrementalEvaluator(mSymbols, mEvalContext);
+        int mFrames;
+        // The last definition compile() couldn't compile
+        String mInvalid;
     }
 }
@@ -0,0 +1,601 @@
+package com.xlythe.math;
+
+import org.ejml.alg.dense.mult.MatrixDimensionException;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+import org.javia.arity.SyntaxException;
+
+import java.util.Arrays;
+
+/**
+ * A matrix that only stores the cells that aren't 0, in compressed sparse row (CSR) form.
+ *
+ * The non zero values are kept row by row in one array, next to an array of their columns.
+ * Row i is the range [mRowStarts[i], mRowStarts[i + 1]) of both. ie. [[0,5,0][0,0,0][7,0,8]]
+ * is stored as values {5,7,8}, columns {1,0,2} and row starts {0,1,1,3}.
+ *
+ * Large matrices that are mostly 0s (identities, banded matrices, adjacency matrices) are
+ * parsed into one of these instead of a SimpleMatrix. Multiplying, transposing, adding,
+ * scaling and LU (for det and ^-1) keep them sparse. Anything else turns them dense first.
+ *
+ * Immutable. Build one with a Builder, adding cells in row major order.
+ */
+final class SparseMatrix {
+    // Smaller matrices aren't worth the bookkeeping
+    private static final int MIN_SIZE = 256;
+    // The largest fraction of non zero cells that's still stored sparse
+    private static final double MAX_DENSITY = 0.1;
+    // When picking a pivot, rows within this fraction of the largest value are good enough,
+    // and the one with the fewest cells wins (so elimination fills in fewer 0s)
+    private static final double PIVOT_THRESHOLD = 0.1;
+
+    private final int mRows;
+    private final int mColumns;
+    private final int[] mRowStarts;
+    private final int[] mColumnIndices;
+    private final double[] mValues;
+
+    private SparseMatrix(int rows, int columns, int[] rowStarts, int[] columnIndices, double[] values) {
+        mRows = rows;
+        mColumns = columns;
+        mRowStarts = rowStarts;
+        mColumnIndices = columnIndices;
+        mValues = values;
+    }
+
+    /**
+     * True if a matrix of this size with this many non zero cells should be stored sparse
+     * */
+    static boolean isSparse(int rows, int columns, long nonZeros) {
+        long size = (long) rows * columns;
+        return size >= MIN_SIZE && nonZeros <= size * MAX_DENSITY;
+    }
+
+    int numRows() {
+        return mRows;
+    }
+
+    int numCols() {
+        return mColumns;
+    }
+
+    int nonZeros() {
+        return mRowStarts[mRows];
+    }
+
+    double get(int row, int column) {
+        int index = Arrays.binarySearch(mColumnIndices, mRowStarts[row], mRowStarts[row + 1], column);
+        return index < 0 ? 0 : mValues[index];
+    }
+
+    /**
+     * Returns this, or a SimpleMatrix if it has filled in too much to be worth storing sparse
+     * */
+    Object compact() {
+        return isSparse(mRows, mColumns, nonZeros()) ? this : toDense();
+    }
+
+    SimpleMatrix toDense() {
+        double[] data = new double[mRows * mColumns];
+        for(int i = 0; i < mRows; i++) {
+            for(int k = mRowStarts[i]; k < mRowStarts[i + 1]; k++) {
+                data[i * mColumns + mColumnIndices[k]] = mValues[k];
+            }
+        }
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(mRows, mColumns, data));
+    }
+
+    /**
+     * Writes the matrix, row by row, as [[a,b][c,d]]. Cells are written by the formatter,
+     * including the 0s, without ever building a dense copy.
+     * */
+    void print(StringBuilder buffer, Formatter formatter) {
+        buffer.append('[');
+        for(int i = 0; i < mRows; i++) {
+            buffer.append('[');
+            int k = mRowStarts[i];
+            int end = mRowStarts[i + 1];
+            for(int j = 0; j < mColumns; j++) {
+                formatter.append(buffer, k < end && mColumnIndices[k] == j ? mValues[k++] : 0);
+                if(j != mColumns - 1) buffer.append(',');
+            }
+            buffer.append(']');
+        }
+        buffer.append(']');
+    }
+
+    interface Formatter {
+        void append(StringBuilder buffer, double value);
+    }
+
+    /**
+     * True if any of the stored cells are NaN
+     * */
+    boolean hasNaN() {
+        for(int k = 0; k < nonZeros(); k++) {
+            if(Double.isNaN(mValues[k])) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies a function to every stored cell. Only valid for functions where f(0) = 0.
+     * */
+    SparseMatrix map(Function function) throws SyntaxException {
+        double[] values = new double[nonZeros()];
+        for(int k = 0; k < values.length; k++) {
+            values[k] = function.apply(mValues[k]);
+        }
+        return new SparseMatrix(mRows, mColumns, mRowStarts, mColumnIndices, values);
+    }
+
+    interface Function {
+        double apply(double value) throws SyntaxException;
+    }
+
+    SparseMatrix scale(double scalar) {
+        double[] values = new double[nonZeros()];
+        for(int k = 0; k < values.length; k++) {
+            values[k] = mValues[k] * scalar;
+        }
+        return new SparseMatrix(mRows, mColumns, mRowStarts, mColumnIndices, values);
+    }
+
+    SparseMatrix transpose() {
+        // Count the cells in each column, which become the rows
+        int[] rowStarts = new int[mColumns + 1];
+        for(int k = 0; k < nonZeros(); k++) {
+            rowStarts[mColumnIndices[k] + 1]++;
+        }
+        for(int j = 0; j < mColumns; j++) {
+            rowStarts[j + 1] += rowStarts[j];
+        }
+
+        // Walking the rows in order leaves every new row sorted by column
+        int[] next = Arrays.copyOf(rowStarts, mColumns);
+        int[] columnIndices = new int[nonZeros()];
+        double[] values = new double[nonZeros()];
+        for(int i = 0; i < mRows; i++) {
+            for(int k = mRowStarts[i]; k < mRowStarts[i + 1]; k++) {
+                int index = next[mColumnIndices[k]]++;
+                columnIndices[index] = i;
+                values[index] = mValues[k];
+            }
+        }
+        return new SparseMatrix(mColumns, mRows, rowStarts, columnIndices, values);
+    }
+
+    /**
+     * Returns this + scale × other
+     * */
+    SparseMatrix plus(SparseMatrix other, double scale) {
+        checkSameSize(other);
+        Builder builder = new Builder(mRows, mColumns, nonZeros() + other.nonZeros());
+        for(int i = 0; i < mRows; i++) {
+            int a = mRowStarts[i];
+            int aEnd = mRowStarts[i + 1];
+            int b = other.mRowStarts[i];
+            int bEnd = other.mRowStarts[i + 1];
+            while(a < aEnd || b < bEnd) {
+                int aColumn = a < aEnd ? mColumnIndices[a] : Integer.MAX_VALUE;
+                int bColumn = b < bEnd ? other.mColumnIndices[b] : Integer.MAX_VALUE;
+                if(aColumn < bColumn) {
+                    builder.add(i, aColumn, mValues[a++]);
+                } else if(bColumn < aColumn) {
+                    builder.add(i, bColumn, scale * other.mValues[b++]);
+                } else {
+                    builder.add(i, aColumn, mValues[a++] + scale * other.mValues[b++]);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns dense + scale × this
+     * */
+    SimpleMatrix addTo(SimpleMatrix dense, double scale) {
+        if(dense.numRows() != mRows || dense.numCols() != mColumns) {
+            throw new MatrixDimensionException("The matrices aren't the same size");
+        }
+        SimpleMatrix result = dense.copy();
+        double[] data = result.getMatrix().data;
+        for(int i = 0; i < mRows; i++) {
+            for(int k = mRowStarts[i]; k < mRowStarts[i + 1]; k++) {
+                data[i * mColumns + mColumnIndices[k]] += scale * mValues[k];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns this × other. Each row of the result is gathered in a dense accumulator,
+     * remembering which columns were touched (Gustavson's algorithm).
+     * */
+    SparseMatrix multiply(SparseMatrix other) {
+        if(mColumns != other.mRows) {
+            throw new MatrixDimensionException("The inner dimensions don't match");
+        }
+        int p = other.mColumns;
+        double[] accumulator = new double[p];
+        // The row each column was last touched in, so the accumulator never has to be cleared
+        int[] touchedIn = new int[p];
+        Arrays.fill(touchedIn, -1);
+        int[] touched = new int[p];
+
+        Builder builder = new Builder(mRows, p, nonZeros() + other.nonZeros());
+        for(int i = 0; i < mRows; i++) {
+            int count = 0;
+            for(int k = mRowStarts[i]; k < mRowStarts[i + 1]; k++) {
+                double value = mValues[k];
+                int row = mColumnIndices[k];
+                for(int l = other.mRowStarts[row]; l < other.mRowStarts[row + 1]; l++) {
+                    int column = other.mColumnIndices[l];
+                    if(touchedIn[column] != i) {
+                        touchedIn[column] = i;
+                        touched[count++] = column;
+                        accumulator[column] = 0;
+                    }
+                    accumulator[column] += value * other.mValues[l];
+                }
+            }
+            Arrays.sort(touched, 0, count);
+            for(int c = 0; c < count; c++) {
+                builder.add(i, touched[c], accumulator[touched[c]]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns this × dense
+     * */
+    SimpleMatrix multiply(SimpleMatrix dense) {
+        if(mColumns != dense.numRows()) {
+            throw new MatrixDimensionException("The inner dimensions don't match");
+        }
+        int p = dense.numCols();
+        double[] right = dense.getMatrix().data;
+        double[] result = new double[mRows * p];
+        for(int i = 0; i < mRows; i++) {
+            int resultRow = i * p;
+            for(int k = mRowStarts[i]; k < mRowStarts[i + 1]; k++) {
+                double value = mValues[k];
+                int rightRow = mColumnIndices[k] * p;
+                for(int j = 0; j < p; j++) {
+                    result[resultRow + j] += value * right[rightRow + j];
+                }
+            }
+        }
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(mRows, p, result));
+    }
+
+    /**
+     * Returns dense × this
+     * */
+    SimpleMatrix multiplyLeft(SimpleMatrix dense) {
+        if(dense.numCols() != mRows) {
+            throw new MatrixDimensionException("The inner dimensions don't match");
+        }
+        int m = dense.numRows();
+        int n = mRows;
+        double[] left = dense.getMatrix().data;
+        double[] result = new double[m * mColumns];
+        for(int i = 0; i < m; i++) {
+            int resultRow = i * mColumns;
+            for(int k = 0; k < n; k++) {
+                double value = left[i * n + k];
+                for(int l = mRowStarts[k]; l < mRowStarts[k + 1]; l++) {
+                    result[resultRow + mColumnIndices[l]] += value * mValues[l];
+                }
+            }
+        }
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(m, mColumns, result));
+    }
+
+    double determinant() {
+        checkSquare();
+        return new LU(this).determinant();
+    }
+
+    /**
+     * Returns the inverse (sparse if it's still mostly 0s), or null if this is singular
+     * */
+    Object invert() {
+        checkSquare();
+        LU lu = new LU(this);
+        if(lu.isSingular()) {
+            return null;
+        }
+
+        // Solve for each column of the inverse, and store them as the rows of its transpose
+        int n = mRows;
+        Builder transpose = new Builder(n, n, nonZeros());
+        double[] column = new double[n];
+        for(int j = 0; j < n; j++) {
+            Arrays.fill(column, 0);
+            column[j] = 1;
+            lu.solve(column);
+            for(int i = 0; i < n; i++) {
+                transpose.add(j, i, column[i]);
+            }
+        }
+        return transpose.build().transpose().compact();
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 31 * mRows + mColumns;
+        for(int k = 0; k < nonZeros(); k++) {
+            long bits = Double.doubleToLongBits(mValues[k]);
+            hash = 31 * (31 * hash + mColumnIndices[k]) + (int) (bits ^ (bits >>> 32));
+        }
+        return hash;
+    }
+
+    /**
+     * Two sparse matrices are equal if they have the same size and the same cells
+     * */
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof SparseMatrix)) return false;
+        SparseMatrix other = (SparseMatrix) o;
+        return mRows == other.mRows
+                && mColumns == other.mColumns
+                && Arrays.equals(mRowStarts, other.mRowStarts)
+                && Arrays.equals(mColumnIndices, other.mColumnIndices)
+                && Arrays.equals(mValues, other.mValues);
+    }
+
+    private void checkSquare() {
+        if(mRows != mColumns) {
+            throw new MatrixDimensionException("The matrix isn't square");
+        }
+    }
+
+    private void checkSameSize(SparseMatrix other) {
+        if(mRows != other.mRows || mColumns != other.mColumns) {
+            throw new MatrixDimensionException("The matrices aren't the same size");
+        }
+    }
+
+    /**
+     * Collects cells in row major order. 0s are skipped.
+     * */
+    static class Builder {
+        private final int mRows;
+        private final int mColumns;
+        private final int[] mRowStarts;
+        private int[] mColumnIndices;
+        private double[] mValues;
+        private int mCount;
+        private int mRow;
+
+        Builder(int rows, int columns, int capacity) {
+            mRows = rows;
+            mColumns = columns;
+            mRowStarts = new int[rows + 1];
+            capacity = Math.max(capacity, 16);
+            mColumnIndices = new int[capacity];
+            mValues = new double[capacity];
+        }
+
+        void add(int row, int column, double value) {
+            if(value == 0) return;
+            while(mRow < row) {
+                mRowStarts[++mRow] = mCount;
+            }
+            if(mCount == mValues.length) {
+                mColumnIndices = Arrays.copyOf(mColumnIndices, mCount * 2);
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+            }
+            mColumnIndices[mCount] = column;
+            mValues[mCount] = value;
+            mCount++;
+        }
+
+        SparseMatrix build() {
+            while(mRow < mRows) {
+                mRowStarts[++mRow] = mCount;
+            }
+            return new SparseMatrix(mRows, mColumns, mRowStarts,
+                    Arrays.copyOf(mColumnIndices, mCount), Arrays.copyOf(mValues, mCount));
+        }
+    }
+
+    /**
+     * Gaussian elimination that keeps every row sparse.
+     *
+     * Rows are bucketed by their first column. Eliminating column k only touches the rows in
+     * its bucket: one becomes the pivot, and the rest have it subtracted, which moves them into
+     * a later bucket. The subtractions are recorded, so they can be replayed on a right hand side.
+     * */
+    private static class LU {
+        private final int mSize;
+        // The original row used as the pivot for each column, and its cells (U)
+        private final int[] mPivotRows;
+        private final int[][] mUColumns;
+        private final double[][] mUValues;
+        // Every row operation, in order: row mTargets[i] -= mFactors[i] × row mSources[i]
+        private int[] mTargets = new int[16];
+        private int[] mSources = new int[16];
+        private double[] mFactors = new double[16];
+        private int mOperations;
+        private boolean mSingular;
+
+        LU(SparseMatrix a) {
+            int n = mSize = a.mRows;
+            int[][] columns = new int[n][];
+            double[][] values = new double[n][];
+            double largest = 0;
+            for(int i = 0; i < n; i++) {
+                columns[i] = Arrays.copyOfRange(a.mColumnIndices, a.mRowStarts[i], a.mRowStarts[i + 1]);
+                values[i] = Arrays.copyOfRange(a.mValues, a.mRowStarts[i], a.mRowStarts[i + 1]);
+                for(double value : values[i]) {
+                    largest = Math.max(largest, Math.abs(value));
+                }
+            }
+            double tolerance = MatrixKernels.singularTolerance(n, largest);
+
+            // Linked lists of the rows that start in each column
+            int[] heads = new int[n];
+            int[] next = new int[n];
+            Arrays.fill(heads, -1);
+            for(int i = n - 1; i >= 0; i--) {
+                if(columns[i].length == 0) continue;
+                int first = columns[i][0];
+                next[i] = heads[first];
+                heads[first] = i;
+            }
+
+            mPivotRows = new int[n];
+            mUColumns = new int[n][];
+            mUValues = new double[n][];
+            for(int k = 0; k < n; k++) {
+                int bucket = heads[k];
+                if(bucket == -1) {
+                    // Nothing left in this column
+                    mSingular = true;
+                    return;
+                }
+
+                double max = 0;
+                for(int row = bucket; row != -1; row = next[row]) {
+                    max = Math.max(max, Math.abs(values[row][0]));
+                }
+                int pivot = -1;
+                for(int row = bucket; row != -1; row = next[row]) {
+                    if(Math.abs(values[row][0]) >= PIVOT_THRESHOLD * max
+                            && (pivot == -1 || columns[row].length < columns[pivot].length)) {
+                        pivot = row;
+                    }
+                }
+                if(max <= tolerance) {
+                    mSingular = true;
+                }
+
+                mPivotRows[k] = pivot;
+                mUColumns[k] = columns[pivot];
+                mUValues[k] = values[pivot];
+
+                for(int row = bucket; row != -1; ) {
+                    int following = next[row];
+                    if(row != pivot) {
+                        double factor = values[row][0] / values[pivot][0];
+                        record(row, pivot, factor);
+                        subtract(columns, values, row, pivot, factor);
+                        if(columns[row].length > 0) {
+                            int first = columns[row][0];
+                            next[row] = heads[first];
+                            heads[first] = row;
+                        }
+                    }
+                    row = following;
+                }
+            }
+        }
+
+        /**
+         * row -= factor × pivot, dropping the first column (which is now 0) and any exact 0s
+         * */
+        private static void subtract(int[][] columns, double[][] values, int row, int pivot, double factor) {
+            int[] aColumns = columns[row];
+            double[] aValues = values[row];
+            int[] bColumns = columns[pivot];
+            double[] bValues = values[pivot];
+            int[] resultColumns = new int[aColumns.length + bColumns.length];
+            double[] resultValues = new double[resultColumns.length];
+
+            int count = 0;
+            int a = 1;
+            int b = 1;
+            while(a < aColumns.length || b < bColumns.length) {
+                int aColumn = a < aColumns.length ? aColumns[a] : Integer.MAX_VALUE;
+                int bColumn = b < bColumns.length ? bColumns[b] : Integer.MAX_VALUE;
+                double value;
+                int column;
+                if(aColumn < bColumn) {
+                    column = aColumn;
+                    value = aValues[a++];
+                } else if(bColumn < aColumn) {
+                    column = bColumn;
+                    value = -factor * bValues[b++];
+                } else {
+                    column = aColumn;
+                    value = aValues[a++] - factor * bValues[b++];
+                }
+                if(value != 0) {
+                    resultColumns[count] = column;
+                    resultValues[count] = value;
+                    count++;
+                }
+            }
+            columns[row] = Arrays.copyOf(resultColumns, count);
+            values[row] = Arrays.copyOf(resultValues, count);
+        }
+
+        private void record(int target, int source, double factor) {
+            if(mOperations == mTargets.length) {
+                mTargets = Arrays.copyOf(mTargets, mOperations * 2);
+                mSources = Arrays.copyOf(mSources, mOperations * 2);
+                mFactors = Arrays.copyOf(mFactors, mOperations * 2);
+            }
+            mTargets[mOperations] = target;
+            mSources[mOperations] = source;
+            mFactors[mOperations] = factor;
+            mOperations++;
+        }
+
+        boolean isSingular() {
+            return mSingular;
+        }
+
+        double determinant() {
+            if(mSingular) {
+                return 0;
+            }
+            double determinant = isOddPermutation(mPivotRows) ? -1 : 1;
+            for(int k = 0; k < mSize; k++) {
+                determinant *= mUValues[k][0];
+            }
+            return determinant;
+        }
+
+        /**
+         * Replaces b with x, where A x = b
+         * */
+        void solve(double[] b) {
+            for(int i = 0; i < mOperations; i++) {
+                b[mTargets[i]] -= mFactors[i] * b[mSources[i]];
+            }
+
+            double[] x = new double[mSize];
+            for(int k = mSize - 1; k >= 0; k--) {
+                int[] columns = mUColumns[k];
+                double[] values = mUValues[k];
+                double sum = b[mPivotRows[k]];
+                for(int l = 1; l < columns.length; l++) {
+                    sum -= values[l] * x[columns[l]];
+                }
+                x[k] = sum / values[0];
+            }
+            System.arraycopy(x, 0, b, 0, mSize);
+        }
+
+        private static boolean isOddPermutation(int[] permutation) {
+            boolean[] visited = new boolean[permutation.length];
+            boolean odd = false;
+            for(int i = 0; i < permutation.length; i++) {
+                if(visited[i]) continue;
+                // A cycle of length L takes L - 1 swaps
+                int length = 0;
+                for(int j = i; !visited[j]; j = permutation[j]) {
+                    visited[j] = true;
+                    length++;
+                }
+                if(length % 2 == 0) odd = !odd;
+            }
+            return odd;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.xlythe.math;
+
+/**
+ * Replaces words in a sentence with their translations, all in a single pass.
+ *
+ * The words are stored in a trie. At every position, the longest word that starts there is
+ * replaced (so "asin" wins over "sin"), and the replacement is never looked at again.
+ * That makes translating O(n) in the length of the sentence, no matter how many words
+ * there are, and avoids one replacement accidentally matching the output of another.
+ *
+ * ie. with sin -> sen and asin -> asen, "asin(sin(1))" becomes "asen(sen(1))"
+ *
+ * Add all the words up front. Once built, translate() can be called from any thread.
+ */
+public class TokenTranslator {
+    private final Node mRoot = new Node();
+
+    /**
+     * Adds a translation. If the word was already added, its translation is replaced.
+     * */
+    public void put(String word, String translation) {
+        if(word == null || word.isEmpty() || translation == null) {
+            return;
+        }
+
+        Node node = mRoot;
+        for(int i = 0; i < word.length(); i++) {
+            node = node.getOrCreateChild(word.charAt(i));
+        }
+        node.mTranslation = translation;
+    }
+
+    public String translate(String sentence) {
+        // Only allocate once we know something needs replacing
+        StringBuilder translated = null;
+        int copied = 0;
+
+        int length = sentence.length();
+        int i = 0;
+        while(i < length) {
+            // Find the longest word starting at i
+            String translation = null;
+            int end = i;
+            Node node = mRoot;
+            for(int j = i; j < length; j++) {
+                node = node.getChild(sentence.charAt(j));
+                if(node == null) break;
+                if(node.mTranslation != null) {
+                    translation = node.mTranslation;
+                    end = j + 1;
+                }
+            }
+
+            if(translation == null) {
+                i++;
+                continue;
+            }
+
+            if(translated == null) {
+                translated = new StringBuilder(length + 16);
+            }
+            translated.append(sentence, copied, i).append(translation);
+            i = end;
+            copied = end;
+        }
+
+        if(translated == null) {
+            return sentence;
+        }
+        translated.append(sentence, copied, length);
+        return translated.toString();
+    }
+
+    private static class Node {
+        // Most nodes only have one or two children, so a linear search beats a map
+        private char[] mKeys = new char[0];
+        private Node[] mChildren = new Node[0];
+        private String mTranslation;
+
+        Node getChild(char c) {
+            char[] keys = mKeys;
+            for(int i = 0; i < keys.length; i++) {
+                if(keys[i] == c) return mChildren[i];
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(char c) {
+            Node child = getChild(c);
+            if(child == null) {
+                int size = mKeys.length;
+                char[] keys = new char[size + 1];
+                Node[] children = new Node[size + 1];
+                System.arraycopy(mKeys, 0, keys, 0, size);
+                System.arraycopy(mChildren, 0, children, 0, size);
+                keys[size] = c;
+                children[size] = child = new Node();
+                mKeys = keys;
+                mChildren = children;
+            }
+            return child;
+        }
+    }
+}
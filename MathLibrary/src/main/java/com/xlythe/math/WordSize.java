@@ -0,0 +1,31 @@
+package com.xlythe.math;
+
+/**
+ * How many bits a number has in programmer mode (binary and hexadecimal).
+ * Results that don't fit wrap around, the same way they would in a register.
+ */
+public enum WordSize {
+    BYTE(8),
+    WORD(16),
+    DWORD(32),
+    QWORD(64),
+    DQWORD(128),
+    ARBITRARY(-1);
+
+    private final int bits;
+
+    WordSize(int bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * The number of bits, or -1 if numbers can grow as large as they need to
+     * */
+    public int getBits() {
+        return bits;
+    }
+
+    public boolean isArbitrary() {
+        return bits == -1;
+    }
+}
@@ -91,7 +91,7 @@ public abstract class BasicCalculator extends Activity
             if (mCurrentState != CalculatorState.GRAPHING) {
                 setState(CalculatorState.INPUT);
             }
-            mEvaluator.evaluate(editable, BasicCalculator.this);
+            mEvaluator.evaluateAsync(editable, BasicCalculator.this);
         }
     };
 
@@ -263,6 +263,14 @@ public abstract class BasicCalculator extends Activity
         mPersist.save();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mEvaluator != null) {
+            mEvaluator.cancel();
+        }
+        super.onDestroy();
+    }
+
     protected boolean saveHistory(String expr, String result, boolean ensureResult) {
         if (mHistory == null) {
             return false;
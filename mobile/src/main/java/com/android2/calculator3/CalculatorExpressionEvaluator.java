@@ -15,18 +15,135 @@
 */
 package com.android2.calculator3;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
 import com.xlythe.math.Base;
 import com.xlythe.math.Solver;
 
 import org.javia.arity.SyntaxException;
 
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CalculatorExpressionEvaluator {
+    // How long to wait for the user to stop typing before evaluating in the background
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+    // The worker thread is let go once the user has been idle for this long
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
     private final Solver mSolver;
     private final CalculatorExpressionTokenizer mTokenizer;
 
+    // Results are delivered on the main thread, like the synchronous evaluate()
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Bumped on every request. A result is only delivered if nothing newer was asked for since.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final ThreadPoolExecutor mExecutor;
+    private long mDebounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private Runnable mPendingEvaluation;
+    private Future<?> mRunningEvaluation;
+
     public CalculatorExpressionEvaluator(CalculatorExpressionTokenizer tokenizer) {
         mSolver = new Solver();
         mTokenizer = tokenizer;
+
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "CalculatorExpressionEvaluator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how long evaluateAsync() waits for the input to settle before evaluating.
+     * */
+    public void setDebounce(long millis) {
+        mDebounceMillis = millis;
+    }
+
+    public long getDebounce() {
+        return mDebounceMillis;
+    }
+
+    /**
+     * Evaluates the expression on a background thread, after the debounce delay. Only the
+     * latest request wins; calling this again (or evaluate(), or cancel()) before the result
+     * arrives drops the older result. The callback is invoked on the main thread.
+     * */
+    public void evaluateAsync(CharSequence expr, final EvaluateCallback callback) {
+        final String text = expr.toString();
+        final int generation = cancel();
+
+        mPendingEvaluation = new Runnable() {
+            @Override
+            public void run() {
+                mPendingEvaluation = null;
+                mRunningEvaluation = mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isStale(generation)) {
+                            return;
+                        }
+                        evaluateNow(text, new EvaluateCallback() {
+                            @Override
+                            public void onEvaluate(final String expr, final String result, final int errorResourceId) {
+                                if (isStale(generation)) {
+                                    return;
+                                }
+                                mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!isStale(generation)) {
+                                            callback.onEvaluate(expr, result, errorResourceId);
+                                        }
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        };
+        mHandler.postDelayed(mPendingEvaluation, mDebounceMillis);
+    }
+
+    /**
+     * Drops any evaluation started by evaluateAsync() that hasn't delivered its result yet.
+     * Returns the new generation.
+     * */
+    public int cancel() {
+        int generation = mGeneration.incrementAndGet();
+        if (mPendingEvaluation != null) {
+            mHandler.removeCallbacks(mPendingEvaluation);
+            mPendingEvaluation = null;
+        }
+        if (mRunningEvaluation != null) {
+            // arity doesn't check for interrupts, but this stops it if it hasn't started yet
+            mRunningEvaluation.cancel(true);
+            mRunningEvaluation = null;
+        }
+        return generation;
+    }
+
+    private boolean isStale(int generation) {
+        return generation != mGeneration.get();
     }
 
     public void evaluate(CharSequence expr, EvaluateCallback callback) {
@@ -34,6 +151,12 @@ public class CalculatorExpressionEvaluator {
     }
 
     public void evaluate(String expr, EvaluateCallback callback) {
+        // An older background result must not arrive after this one
+        cancel();
+        evaluateNow(expr, callback);
+    }
+
+    private void evaluateNow(String expr, EvaluateCallback callback) {
         expr = mTokenizer.getNormalizedExpression(expr);
 
         try {
@@ -55,6 +178,7 @@ public class CalculatorExpressionEvaluator {
     }
 
     public void setBase(String expr, Base base, EvaluateCallback callback) {
+        cancel();
         try {
             String result = mSolver.getBaseModule().setBase(expr, base);
             callback.onEvaluate(expr, result, Calculator.INVALID_RES_ID);
@@ -16,19 +16,41 @@
 package com.android2.calculator3;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import com.xlythe.math.Constants;
+import com.xlythe.math.TokenTranslator;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
 public class CalculatorExpressionTokenizer {
     private final Context mContext;
     private final List<Localizer> mReplacements;
 
+    // Compiled from mReplacements. Rebuilt when the locale or the angle units change.
+    private TokenTranslator mNormalizer;
+    private TokenTranslator mLocalizer;
+    private Locale mLocale;
+    private int mConstantsGeneration;
+    private boolean mUseRadians;
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    invalidate();
+                }
+            };
+
     public CalculatorExpressionTokenizer(Context context) {
         mContext = context;
         mReplacements = new LinkedList<Localizer>();
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .registerOnSharedPreferenceChangeListener(mSettingsListener);
     }
 
     private void generateReplacements(Context context) {
@@ -55,10 +77,14 @@ public class CalculatorExpressionTokenizer {
         mReplacements.add(new Localizer("sin", context.getString(R.string.fun_sin)));
         mReplacements.add(new Localizer("cos", context.getString(R.string.fun_cos)));
         mReplacements.add(new Localizer("tan", context.getString(R.string.fun_tan)));
-        if(!CalculatorSettings.useRadians(context)) {
-            mReplacements.add(new Localizer("sind", "sin"));
-            mReplacements.add(new Localizer("cosd", "cos"));
-            mReplacements.add(new Localizer("tand", "tan"));
+        if(!mUseRadians) {
+            // Trig functions (and their inverses) switch to their degree versions
+            mReplacements.add(new Localizer("asind", context.getString(R.string.fun_arcsin)));
+            mReplacements.add(new Localizer("acosd", context.getString(R.string.fun_arccos)));
+            mReplacements.add(new Localizer("atand", context.getString(R.string.fun_arctan)));
+            mReplacements.add(new Localizer("sind", context.getString(R.string.fun_sin)));
+            mReplacements.add(new Localizer("cosd", context.getString(R.string.fun_cos)));
+            mReplacements.add(new Localizer("tand", context.getString(R.string.fun_tan)));
         }
         mReplacements.add(new Localizer("ln", context.getString(R.string.fun_ln)));
         mReplacements.add(new Localizer("log", context.getString(R.string.fun_log)));
@@ -66,20 +92,48 @@ public class CalculatorExpressionTokenizer {
         mReplacements.add(new Localizer("Infinity", context.getString(R.string.inf)));
     }
 
-    public String getNormalizedExpression(String expr) {
+    /**
+     * Rebuilds the translators if anything they depend on has changed
+     * */
+    private void ensureTranslators() {
+        Locale locale = mContext.getResources().getConfiguration().locale;
+        if(mNormalizer != null
+                && locale.equals(mLocale)
+                && Constants.getGeneration() == mConstantsGeneration) {
+            return;
+        }
+        mLocale = locale;
+        mConstantsGeneration = Constants.getGeneration();
+        mUseRadians = CalculatorSettings.useRadians(mContext);
         generateReplacements(mContext);
-        for (Localizer replacement : mReplacements) {
-            expr = expr.replace(replacement.local, replacement.english);
+
+        // Degree versions are added after the radian ones, so they win when normalizing
+        TokenTranslator normalizer = new TokenTranslator();
+        TokenTranslator localizer = new TokenTranslator();
+        for(Localizer replacement : mReplacements) {
+            normalizer.put(replacement.local, replacement.english);
+            localizer.put(replacement.english, replacement.local);
         }
-        return expr;
+        mNormalizer = normalizer;
+        mLocalizer = localizer;
     }
 
-    public String getLocalizedExpression(String expr) {
-        generateReplacements(mContext);
-        for (Localizer replacement : mReplacements) {
-            expr = expr.replace(replacement.english, replacement.local);
-        }
-        return expr;
+    /**
+     * Forces the translators to be rebuilt the next time they're used
+     * */
+    public synchronized void invalidate() {
+        mNormalizer = null;
+        mLocalizer = null;
+    }
+
+    public synchronized String getNormalizedExpression(String expr) {
+        ensureTranslators();
+        return mNormalizer.translate(expr);
+    }
+
+    public synchronized String getLocalizedExpression(String expr) {
+        ensureTranslators();
+        return mLocalizer.translate(expr);
     }
 
     private class Localizer {
@@ -91,4 +145,4 @@ public class CalculatorExpressionTokenizer {
             this.local = local;
         }
     }
-}
\ No newline at end of file
+}
@@ -128,6 +128,7 @@ public class GraphController implements PanListener, ZoomListener {
         mGraphModule.setDomain(mMainGraphView.getXAxisMin(), mMainGraphView.getXAxisMax());
         mGraphModule.setRange(mMainGraphView.getYAxisMin(), mMainGraphView.getYAxisMax());
         mGraphModule.setZoomLevel(mMainGraphView.getZoomLevel());
+        mGraphModule.setResolution(mMainGraphView.getWidth(), mMainGraphView.getHeight());
         }
 
 @Override
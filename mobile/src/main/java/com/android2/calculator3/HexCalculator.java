@@ -31,6 +31,8 @@ import android.widget.TextView;
 import com.android2.calculator3.CalculatorExpressionEvaluator.EvaluateCallback;
 import com.android2.calculator3.view.CalculatorEditText;
 import com.xlythe.math.Base;
+import com.xlythe.math.BaseModule;
+import com.xlythe.math.WordSize;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -43,6 +45,8 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
 
     // instance state keys
     private static final String KEY_BASE = NAME + "_base";
+    private static final String KEY_WORD_SIZE = NAME + "_word_size";
+    private static final String KEY_SIGNED = NAME + "_signed";
 
     private CalculatorEditText mFormulaEditText;
     private CalculatorEditText mResultEditText;
@@ -56,6 +60,8 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putInt(KEY_BASE, mBaseManager.getNumberBase().ordinal());
+        outState.putInt(KEY_WORD_SIZE, getBaseModule().getWordSize().ordinal());
+        outState.putBoolean(KEY_SIGNED, getBaseModule().isSigned());
     }
 
     @Override
@@ -71,6 +77,12 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
             base = Base.values()[baseOrdinal];
         }
         mBaseManager = new NumberBaseManager(base);
+
+        int wordSizeOrdinal = savedInstanceState.getInt(KEY_WORD_SIZE, -1);
+        if (wordSizeOrdinal != -1) {
+            getBaseModule().setWordSize(WordSize.values()[wordSizeOrdinal]);
+        }
+        getBaseModule().setSigned(savedInstanceState.getBoolean(KEY_SIGNED, true));
         invalidateSelectedBase(base);
 
         mShowBaseDetails = !mBaseManager.getNumberBase().equals(Base.DECIMAL);
@@ -180,6 +192,9 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
         List<Detail> details = new LinkedList<>();
         if (mShowBaseDetails) {
             details.add(getBaseDetail());
+            if (!mBaseManager.getNumberBase().equals(Base.DECIMAL)) {
+                details.add(getWordSizeDetail());
+            }
         }
         if (mShowTrigDetails) {
             details.add(getUnitDetail());
@@ -235,6 +250,60 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
         return new Detail(text, listener);
     }
 
+    private Detail getWordSizeDetail() {
+        final BaseModule baseModule = getBaseModule();
+        String text;
+        if (baseModule.getWordSize().isArbitrary()) {
+            text = getString(R.string.word_size_arbitrary);
+        } else {
+            text = getString(R.string.word_size, baseModule.getWordSize().getBits()) + " "
+                    + getString(baseModule.isSigned() ? R.string.signed : R.string.unsigned);
+        }
+
+        View.OnClickListener listener = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Word sizes use their ordinal as an id, signed and unsigned go after them
+                final WordSize[] sizes = WordSize.values();
+                final int SIGNED = sizes.length;
+                final int UNSIGNED = sizes.length + 1;
+                final PopupMenu popupMenu = new PopupMenu(getBaseContext(), mInfoView);
+                final Menu menu = popupMenu.getMenu();
+                for (WordSize size : sizes) {
+                    String title = size.isArbitrary() ? getString(R.string.word_size_arbitrary)
+                            : getString(R.string.word_size, size.getBits());
+                    menu.add(0, size.ordinal(), menu.size(), title);
+                }
+                menu.add(0, SIGNED, menu.size(), R.string.signed);
+                menu.add(0, UNSIGNED, menu.size(), R.string.unsigned);
+                popupMenu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+                    @Override
+                    public boolean onMenuItemClick(MenuItem item) {
+                        if (item.getItemId() == SIGNED) {
+                            baseModule.setSigned(true);
+                        } else if (item.getItemId() == UNSIGNED) {
+                            baseModule.setSigned(false);
+                        } else {
+                            baseModule.setWordSize(sizes[item.getItemId()]);
+                        }
+                        invalidateDetails();
+                        if (getState() != CalculatorState.GRAPHING) {
+                            setState(CalculatorState.INPUT);
+                        }
+                        getEvaluator().evaluate(mFormulaEditText.getCleanText(), HexCalculator.this);
+                        return true;
+                    }
+                });
+                popupMenu.show();
+            }
+        };
+        return new Detail(text, listener);
+    }
+
+    private BaseModule getBaseModule() {
+        return getEvaluator().getSolver().getBaseModule();
+    }
+
     private Detail getUnitDetail() {
         String text = CalculatorSettings.useRadians(getBaseContext()) ?
                 getString(R.string.radians) : getString(R.string.degrees);
@@ -259,6 +328,8 @@ public abstract class HexCalculator extends PanelSwitchingCalculator {
                                 CalculatorSettings.setRadiansEnabled(getBaseContext(), false);
                                 break;
                         }
+                        // Compiled equations still have the old units baked in
+                        getEvaluator().getSolver().clearCache();
                         invalidateDetails();
                         if (getState() != CalculatorState.GRAPHING) {
                             setState(CalculatorState.INPUT);
@@ -18,9 +18,9 @@ package com.android2.calculator3.view;
 
 import android.content.Context;
 import android.text.Editable;
-import android.text.Html;
 import android.text.Layout;
 import android.text.Spannable;
+import android.text.SpannableStringBuilder;
 import android.text.method.LinkMovementMethod;
 import android.text.style.CharacterStyle;
 import android.text.style.ReplacementSpan;
@@ -29,8 +29,6 @@ import android.util.Log;
 import android.view.MotionEvent;
 import android.widget.TextView;
 
-import com.xlythe.math.BaseModule;
-
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -84,14 +82,7 @@ public class CalculatorEditText extends FormattedNumberEditText {
         String editable = s.toString();
         MutableInteger selectionHandle = new MutableInteger(getSelectionStart());
 
-        // Make adjustments (insert will append a SELECTION_HANDLE marker)
-        int customHandle = editable.indexOf(BaseModule.SELECTION_HANDLE);
-        if (customHandle >= 0) {
-            selectionHandle.set(customHandle);
-            editable = editable.replace(Character.toString(BaseModule.SELECTION_HANDLE), "");
-        }
-
-        // Update the text with the correct (no SELECTION_HANDLE) copy
+        // Reset the text, so the matrices in it are turned back into spans
         setText(editable);
         log("invalidateSpannables a");
         invalidateSpannables();
@@ -116,7 +107,7 @@ public class CalculatorEditText extends FormattedNumberEditText {
         }
 
         // Start formatting, but skip the parts that involve spans
-        StringBuilder builder = new StringBuilder();
+        SpannableStringBuilder builder = new SpannableStringBuilder();
 
         log("Parsing " + editable);
         for (int i = 0; i < spans.length + 1; i++) {
@@ -134,12 +125,10 @@ public class CalculatorEditText extends FormattedNumberEditText {
                 // Special case -- keep track of the selection handle
                 String cs = text.substring(0, length);
                 selectionHandle.subtract(TextUtil.countOccurrences(cs, getSolver().getBaseModule().getSeparator()));
-                text = formatText(removeFormatting(text), selectionHandle);
-            } else {
-                text = formatText(removeFormatting(text), selectionHandle);
             }
-            log("I formatted it to look like " + text);
-            builder.append(text);
+            CharSequence formatted = formatText(removeFormatting(text), selectionHandle);
+            log("I formatted it to look like " + formatted);
+            builder.append(formatted);
             if (i < spans.length) {
                 builder.append(spans[i].getEquation());
                 log("Adding my span too: " + spans[i].getEquation());
@@ -148,12 +137,24 @@ public class CalculatorEditText extends FormattedNumberEditText {
         log("My end result is: " + builder.toString());
 
         // Update the text with formatted (comas, etc) text
-        setText(Html.fromHtml(builder.toString()));
+        setText(builder);
         log("invalidateSpannables b");
         invalidateSpannables();
         setSelection(selectionHandle.intValue());
     }
 
+    @Override
+    protected boolean canFormatIncrementally(CharSequence text) {
+        // Brackets can start (or break) a matrix, which needs invalidateSpannables()
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '[' || c == ']') {
+                return false;
+            }
+        }
+        return super.canFormatIncrementally(text);
+    }
+
     @Override
     protected String removeFormatting(String input) {
         StringBuilder cleanText = new StringBuilder();
@@ -161,7 +162,7 @@ public class CalculatorEditText extends FormattedNumberEditText {
 
         loop: for (int i = 0; i < input.length(); i++) {
             for (SpanComponent component : mComponents) {
-                String equation = component.parse(input.substring(i));
+                String equation = component.parse(input, i);
                 if (equation != null) {
                     // Apply super.removeFormatting on the cache (the part we didn't really care about)
                     cleanText.append(super.removeFormatting(cache.toString()));
@@ -200,7 +201,7 @@ public class CalculatorEditText extends FormattedNumberEditText {
         // Loop over the text, looking for new spans
         for (int i = 0; i < text.length(); i++) {
             for (SpanComponent component : mComponents) {
-                String equation = component.parse(text.substring(i));
+                String equation = component.parse(text, i);
                 if (equation != null) {
                     MathSpannable span = component.getSpan(equation);
                     spans.setSpan(span, i, i + equation.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
@@ -267,7 +268,10 @@ public class CalculatorEditText extends FormattedNumberEditText {
     }
 
     public static abstract class SpanComponent {
-        public abstract String parse(String formula);
+        /**
+         * Returns the equation that starts at the given index, or null if there isn't one
+         * */
+        public abstract String parse(String formula, int start);
         public abstract MathSpannable getSpan(String equation);
     }
 
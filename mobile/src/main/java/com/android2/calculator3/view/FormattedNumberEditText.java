@@ -18,14 +18,16 @@ package com.android2.calculator3.view;
 
 import android.content.Context;
 import android.text.Editable;
-import android.text.Html;
+import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.style.ReplacementSpan;
+import android.text.style.SuperscriptSpan;
 import android.util.AttributeSet;
 
 import com.android2.calculator3.R;
-import com.xlythe.math.BaseModule;
 import com.xlythe.math.Constants;
 import com.xlythe.math.EquationFormatter;
+import com.xlythe.math.NumberLexer;
 import com.xlythe.math.Solver;
 
 import java.util.Arrays;
@@ -46,23 +48,59 @@ public class FormattedNumberEditText extends NumberEditText {
     private boolean mTextWatchersEnabled = true;
     private final TextWatcher mTextWatcher = new TextWatcher() {
         @Override
-        public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (!mTextWatchersEnabled || mIsSettingText) return;
+            mRemovedText = s.subSequence(start, start + count).toString();
+
+            // setText() notifies our listeners itself, but edits made in place don't go through it
+            mIsNotifyingEdit = true;
+            for (TextWatcher textWatcher : mTextWatchers) {
+                textWatcher.beforeTextChanged(getCleanText(), 0, 0, 0);
+            }
+        }
 
         @Override
-        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mDirtyStart = start;
+            mDirtyEnd = start + count;
+        }
 
         @Override
         public void afterTextChanged(Editable s) {
-            if (!mTextWatchersEnabled || mSolver == null || getSelectionStart() == -1) return;
+            if (!mTextWatchersEnabled) return;
+            if (mSolver == null || getSelectionStart() == -1) {
+                // Nothing to format, but listeners told about the edit still need to hear it's done
+                notifyEditFinished();
+                return;
+            }
             mTextWatchersEnabled = false;
-            onFormat(s);
+            if (mIsSettingText) {
+                onFormat(s);
+                mTextWatchersEnabled = true;
+                return;
+            }
+
+            if (!formatIncrementally(s)) {
+                // The cursor belongs after whatever was just typed
+                setSelection(mDirtyEnd);
+                onFormat(s);
+            }
+            invalidateTextSize();
             mTextWatchersEnabled = true;
+            notifyEditFinished();
         }
     };
     private EquationFormatter mEquationFormatter;
     private Solver mSolver;
     private List<String> mKeywords;
-    private boolean mIsInserting;
+
+    // The last edit made in place (ie. not by setText), so we only reformat around it
+    private boolean mIsSettingText;
+    private int mDirtyStart;
+    private int mDirtyEnd;
+    private String mRemovedText = "";
+    // Set once our listeners have been told an edit made in place is coming
+    private boolean mIsNotifyingEdit;
 
     public FormattedNumberEditText(Context context) {
         super(context);
@@ -81,6 +119,19 @@ public class FormattedNumberEditText extends NumberEditText {
         invalidateKeywords(context);
     }
 
+    /**
+     * Tells our listeners that the edit made in place, which they heard about in
+     * beforeTextChanged(), is done.
+     * */
+    private void notifyEditFinished() {
+        if (!mIsNotifyingEdit) return;
+        mIsNotifyingEdit = false;
+        for (TextWatcher textWatcher : mTextWatchers) {
+            textWatcher.afterTextChanged(getEditableFactory().newEditable(getCleanText()));
+            textWatcher.onTextChanged(getCleanText(), 0, 0, 0);
+        }
+    }
+
     public void invalidateKeywords(Context context) {
         mKeywords = Arrays.asList(
                 context.getString(R.string.fun_arcsin) + "(",
@@ -120,10 +171,70 @@ public class FormattedNumberEditText extends NumberEditText {
         selectionHandle.subtract(TextUtil.countOccurrences(cs, mSolver.getBaseModule().getSeparator()));
 
         // Update the text with formatted (comas, etc) text
-        setText(Html.fromHtml(formatText(text, selectionHandle)));
+        setText(formatText(text, selectionHandle));
         setSelection(selectionHandle.intValue());
     }
 
+    /**
+     * Re-groups only the number around the last edit, directly in the Editable, so the rest of
+     * the text (and any spans in it) is left alone. Returns false if the edit could change how
+     * the rest of the text is formatted, in which case onFormat() has to be called instead.
+     * */
+    private boolean formatIncrementally(Editable s) {
+        int length = s.length();
+        if (mDirtyEnd > length) {
+            return false;
+        }
+
+        // Grow the edit to cover the whole number it's in (or the numbers on either side)
+        NumberLexer lexer = new NumberLexer(s, false);
+        int start = mDirtyStart;
+        int end = mDirtyEnd;
+        while (start > 0 && lexer.isNumber(s.charAt(start - 1))) start--;
+        while (end < length && lexer.isNumber(s.charAt(end))) end++;
+
+        // Exponents depend on everything before them, and spans draw text we don't own
+        if (s.getSpans(0, end, SuperscriptSpan.class).length != 0
+                || s.getSpans(start, end, ReplacementSpan.class).length != 0
+                || !canFormatIncrementally(mRemovedText)
+                || !canFormatIncrementally(s.subSequence(start, end))) {
+            return false;
+        }
+
+        // Strip the grouping, remembering where the cursor is
+        char separator = mSolver.getBaseModule().getSeparator();
+        StringBuilder clean = new StringBuilder(end - start);
+        int cursor = 0;
+        for (int i = start; i < end; i++) {
+            if (i == mDirtyEnd) cursor = clean.length();
+            char c = s.charAt(i);
+            if (c != separator) clean.append(c);
+        }
+        if (mDirtyEnd == end) cursor = clean.length();
+
+        CharSequence formatted = mEquationFormatter.formatSpanned(mSolver, clean, cursor, false);
+        cursor = start + mEquationFormatter.getSelectionHandle();
+        if (!TextUtils.equals(formatted, s.subSequence(start, end))) {
+            s.replace(start, end, formatted.toString());
+        }
+        setSelection(cursor);
+        return true;
+    }
+
+    /**
+     * Returns false if the text contains anything that affects the formatting of the rest
+     * of the equation
+     * */
+    protected boolean canFormatIncrementally(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == Constants.POWER || c == Constants.POWER_PLACEHOLDER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void addTextChangedListener(TextWatcher watcher) {
         // Some flavors of Android call addTextChangedListener in the constructor, so add a
@@ -142,8 +253,10 @@ public class FormattedNumberEditText extends NumberEditText {
                 textWatcher.beforeTextChanged(getCleanText(), 0, 0, 0);
             }
         }
+        mIsSettingText = true;
         super.setText(text, type);
-        if (text != null && !mIsInserting) {
+        mIsSettingText = false;
+        if (text != null) {
             setSelection(getText().length());
         }
         invalidateTextSize();
@@ -160,10 +273,8 @@ public class FormattedNumberEditText extends NumberEditText {
     }
 
     public void insert(String delta) {
-        String currentText = getText().toString();
         int selectionHandle = getSelectionStart();
-        String textBeforeInsertionHandle = currentText.substring(0, selectionHandle);
-        String textAfterInsertionHandle = currentText.substring(selectionHandle, currentText.length());
+        final int insertionEnd = selectionHandle;
 
         // Add extra rules for decimal points and operators
         if (delta.length() == 1) {
@@ -203,14 +314,13 @@ public class FormattedNumberEditText extends NumberEditText {
 
                     --selectionHandle;
                     prevChar = selectionHandle > 0 ? getText().charAt(selectionHandle - 1) : '\0';
-                    textBeforeInsertionHandle = textBeforeInsertionHandle.substring(0, selectionHandle);
                 }
             }
         }
 
-        mIsInserting = true;
-        setText(textBeforeInsertionHandle + delta + BaseModule.SELECTION_HANDLE + textAfterInsertionHandle);
-        mIsInserting = false;
+        // Edit in place (replacing any operators we skipped over), so that only the number
+        // around the cursor needs to be reformatted
+        getText().replace(selectionHandle, insertionEnd, delta);
     }
 
     public void clear() {
@@ -235,31 +345,18 @@ public class FormattedNumberEditText extends NumberEditText {
         String text = getText().toString();
         int selectionHandle = getSelectionStart();
         String textBeforeInsertionHandle = text.substring(0, selectionHandle);
-        String textAfterInsertionHandle = text.substring(selectionHandle, text.length());
 
         for(String s : mKeywords) {
             if(textBeforeInsertionHandle.endsWith(s)) {
-                int deletionLength = s.length();
-                String newText = textBeforeInsertionHandle.substring(0, textBeforeInsertionHandle.length() - deletionLength) + textAfterInsertionHandle;
-                setText(newText);
-                setSelection(selectionHandle - deletionLength);
+                getText().delete(selectionHandle - s.length(), selectionHandle);
                 return;
             }
         }
 
-        // Override NumberEditText's method -- because commas might disappear, it complicates things
+        // Override NumberEditText's method -- because commas might disappear, it complicates things.
+        // Reformatting puts the cursor back in the right place.
         if (selectionHandle != 0) {
-            setText(textBeforeInsertionHandle.substring(0, textBeforeInsertionHandle.length() - 1)
-                    + textAfterInsertionHandle);
-
-            if (getText().length() == text.length() - 2) {
-                // 2 characters were deleted (likely a comma and a number)
-                selectionHandle -= 2;
-            } else {
-                --selectionHandle;
-            }
-
-            setSelection(selectionHandle);
+            getText().delete(selectionHandle - 1, selectionHandle);
         }
     }
 
@@ -286,30 +383,11 @@ public class FormattedNumberEditText extends NumberEditText {
         return input;
     }
 
-    protected String formatText(String input, MutableInteger selectionHandle) {
-        int customHandle = input.indexOf(BaseModule.SELECTION_HANDLE);
-        if (customHandle >= 0) {
-            selectionHandle.set(customHandle);
-            input = input.replace(Character.toString(BaseModule.SELECTION_HANDLE), "");
-        }
-
-        if (mSolver != null) {
-            // Add grouping, and then split on the selection handle
-            // which is saved as a unique char
-            String grouped = mEquationFormatter.addComas(mSolver, input, selectionHandle.intValue());
-            if (grouped.contains(String.valueOf(BaseModule.SELECTION_HANDLE))) {
-                String[] temp = grouped.split(String.valueOf(BaseModule.SELECTION_HANDLE));
-                selectionHandle.set(temp[0].length());
-                input = "";
-                for (String s : temp) {
-                    input += s;
-                }
-            } else {
-                input = grouped;
-            }
-        }
-
-        return mEquationFormatter.insertSupScripts(input);
+    protected CharSequence formatText(String input, MutableInteger selectionHandle) {
+        // Add grouping and superscripts in one pass, keeping track of the selection handle
+        CharSequence formatted = mEquationFormatter.formatSpanned(mSolver, input, selectionHandle.intValue(), false);
+        selectionHandle.set(mEquationFormatter.getSelectionHandle());
+        return formatted;
     }
 
     protected Solver getSolver() {
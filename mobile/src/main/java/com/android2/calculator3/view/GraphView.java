@@ -596,12 +596,8 @@ public class GraphView extends View {
     }
 
     private boolean tooFar(float aX, float aY, float bX, float bY) {
-        boolean outOfBounds = aX == -1 || aY == -1 || bX == -1 || bY == -1;
-        if (outOfBounds) return true;
-
-        boolean horzAsymptote = (aX > getXAxisMax() && bX < getXAxisMin()) || (aX < getXAxisMin() && bX > getXAxisMax());
-        boolean vertAsymptote = (aY > getYAxisMax() && bY < getYAxisMin()) || (aY < getYAxisMin() && bY > getYAxisMax());
-        return horzAsymptote || vertAsymptote;
+        // GraphModule marks discontinuities with a NaN point, which has no raw position
+        return aX == -1 || aY == -1 || bX == -1 || bY == -1;
     }
 
     public float getXAxisMin() {
@@ -12,8 +12,9 @@ import com.android2.calculator3.R;
 import com.android2.calculator3.view.CalculatorEditText.MathSpannable;
 import com.android2.calculator3.view.CalculatorEditText.SpanComponent;
 import com.xlythe.math.Constants;
+import com.xlythe.math.MatrixDetector;
 
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 /**
  * A component for CalculatorEditText that draws matrices in a really pretty way
@@ -27,12 +28,12 @@ public class MatrixComponent extends SpanComponent {
     }
 
     @Override
-    public String parse(String formula) {
-        if (verify(formula)) {
-            return parseMatrix(formula);
-        } else {
+    public String parse(String formula, int start) {
+        int end = MatrixDetector.getInstance().matchAt(formula, start);
+        if (end == -1) {
             return null;
         }
+        return formula.substring(start, end);
     }
 
     @Override
@@ -44,33 +45,28 @@ public class MatrixComponent extends SpanComponent {
         return "[[" + Constants.MATRIX_SEPARATOR + "][" + Constants.MATRIX_SEPARATOR + "]]";
     }
 
-    private static boolean verify(String text) {
-        String separator = String.valueOf(Constants.MATRIX_SEPARATOR);
-        String decimal = String.valueOf(Constants.DECIMAL_POINT);
-        String validMatrix = "\\[(\\[[\u2212-]?[A-F0-9]*(" + Pattern.quote(decimal) + "[A-F0-9]*)?(" + Pattern.quote(separator) + "[\u2212-]?[A-F0-9]*(" + Pattern.quote(decimal) + "[A-F0-9]*)?)*\\])+\\].*";
-        return text.matches(validMatrix);
-    }
-
-    private static String parseMatrix(String text) {
-        int bracket_open = 0;
-        int bracket_closed = 0;
-        for(int i = 0; i < text.length(); i++) {
-            if(text.charAt(i) == '[') {
-                bracket_open++;
-            } else if(text.charAt(i) == ']') {
-                bracket_closed++;
-            }
-            if(bracket_open == bracket_closed) return text.substring(0, i + 1);
-        }
-        return "";
-    }
-
+    /**
+     * Draws a matrix as a grid.
+     *
+     * Results can be huge (a 500x500 matrix has 250k cells), so cells are never copied out of
+     * the equation. It's indexed once, keeping where each cell starts. Columns are as wide as
+     * their widest cell, which is found from the width of every character, measured a row at
+     * a time (the cell with the most characters isn't always the widest). Only the cells
+     * inside the canvas' clip are drawn.
+     */
     private static class MatrixSpannable extends MathSpannable {
         private final Context mContext;
-        private final String[][] mData;
+
+        private final int mRows;
+        private final int mColumns;
+        // Where each cell starts in the equation, row by row
+        private final int[] mCellStarts;
+        // The index in mCellStarts of the first cell of each row, plus one past the last cell
+        private final int[] mRowStarts;
 
         private final NinePatchDrawable mBackground;
         private final Rect mBackgroundPadding = new Rect();
+        private final Rect mClipBounds = new Rect();
         private final float mMinColumnWidth;
         private final float mSpacing;
 
@@ -78,6 +74,10 @@ public class MatrixComponent extends SpanComponent {
         private final long mShowCursor = SystemClock.uptimeMillis();
         private final Paint mHighlightPaint = new Paint();
 
+        // Where each column starts, relative to the first one, and the text size they were measured at
+        private float[] mColumnOffsets;
+        private float mMeasuredTextSize;
+
         // Cached copy of the span's width
         private int mSize;
 
@@ -85,18 +85,42 @@ public class MatrixComponent extends SpanComponent {
             super(equation);
             mContext = context;
 
-            final int rows = countOccurrences(equation, '[') - 1;
-            final int columns = countOccurrences(equation, Constants.MATRIX_SEPARATOR) / rows + 1;
-
-            mData = new String[rows][columns];
+            // Index the cells. The equation is [[a,b][c,d]], so every [ after the first starts
+            // a row, and every separator starts another cell in it.
+            int[] cellStarts = new int[16];
+            int[] rowStarts = new int[8];
+            int cells = 0;
+            int rows = 0;
+            int columns = 0;
+            int column = 0;
+            for (int i = 1; i < equation.length(); i++) {
+                char c = equation.charAt(i);
+                if (c != '[' && c != Constants.MATRIX_SEPARATOR) {
+                    continue;
+                }
 
-            String[] data = equation.split(Pattern.quote(Character.toString(Constants.MATRIX_SEPARATOR)) + "|\\]\\[");
-            for(int order = 0, row = 0; row < rows; row++) {
-                for(int column = 0; column < columns; column++) {
-                    mData[row][column] = data[order].replaceAll("[\\[\\]]", "");
-                    order++;
+                if (c == '[') {
+                    if (rows + 1 >= rowStarts.length) {
+                        rowStarts = Arrays.copyOf(rowStarts, rowStarts.length * 2);
+                    }
+                    rowStarts[rows++] = cells;
+                    column = 0;
+                } else {
+                    column++;
+                }
+                if (cells == cellStarts.length) {
+                    cellStarts = Arrays.copyOf(cellStarts, cells * 2);
                 }
+                cellStarts[cells] = i + 1;
+                columns = Math.max(columns, column + 1);
+                cells++;
             }
+            rowStarts[rows] = cells;
+
+            mRows = Math.max(1, rows);
+            mColumns = columns;
+            mCellStarts = cellStarts;
+            mRowStarts = rowStarts;
 
             if (android.os.Build.VERSION.SDK_INT >= 21) {
                 mBackground = (NinePatchDrawable) mContext.getResources().getDrawable(R.drawable.matrix_background, null);
@@ -109,22 +133,71 @@ public class MatrixComponent extends SpanComponent {
             mSpacing = mContext.getResources().getDisplayMetrics().density * 5;
         }
 
-        private int getColumnSize(Paint paint, int column) {
-            float largestTextWidth = 0;
-            for (int i = 0; i < mData.length; i++) {
-                if (column < mData[i].length) {
-                    largestTextWidth = Math.max(paint.measureText(mData[i][column]), largestTextWidth);
+        /**
+         * Returns the length of the cell starting at the index, which ends at a separator or ]
+         * */
+        private static int cellLength(String equation, int start) {
+            int end = start;
+            while (end < equation.length()
+                    && equation.charAt(end) != Constants.MATRIX_SEPARATOR
+                    && equation.charAt(end) != ']') {
+                end++;
+            }
+            return end - start;
+        }
+
+        /**
+         * Measures every column (once per text size) by its widest cell
+         * */
+        private void measureColumns(Paint paint) {
+            if (mColumnOffsets != null && mMeasuredTextSize == paint.getTextSize()) {
+                return;
+            }
+
+            String equation = getEquation();
+            float[] widths = new float[mColumns];
+            float[] advances = new float[16];
+            for (int row = 0; row < mRows; row++) {
+                int firstCell = mRowStarts[row];
+                int lastCell = mRowStarts[row + 1] - 1;
+                if (lastCell < firstCell) {
+                    continue;
                 }
+
+                // One call per row for the width of each character, instead of one per cell
+                int rowStart = mCellStarts[firstCell];
+                int rowEnd = mCellStarts[lastCell] + cellLength(equation, mCellStarts[lastCell]);
+                if (advances.length < rowEnd - rowStart) {
+                    advances = new float[Math.max(rowEnd - rowStart, advances.length * 2)];
+                }
+                paint.getTextWidths(equation, rowStart, rowEnd, advances);
+
+                for (int cell = firstCell; cell <= lastCell; cell++) {
+                    int cellStart = mCellStarts[cell];
+                    int cellEnd = cellStart + cellLength(equation, cellStart);
+                    float width = 0;
+                    for (int i = cellStart; i < cellEnd; i++) {
+                        width += advances[i - rowStart];
+                    }
+                    int column = cell - firstCell;
+                    widths[column] = Math.max(widths[column], width);
+                }
+            }
+
+            float[] offsets = new float[mColumns + 1];
+            for (int column = 0; column < mColumns; column++) {
+                offsets[column + 1] = offsets[column] + Math.max(mMinColumnWidth, widths[column]);
             }
-            return (int) Math.max(mMinColumnWidth, largestTextWidth);
+            mColumnOffsets = offsets;
+            mMeasuredTextSize = paint.getTextSize();
         }
 
         private void modifyPaint(Paint paint) {
-            paint.setTextSize(paint.getTextSize() / mData.length);
+            paint.setTextSize(paint.getTextSize() / mRows);
         }
 
         private void restorePaint(Paint paint) {
-            paint.setTextSize(paint.getTextSize() * mData.length);
+            paint.setTextSize(paint.getTextSize() * mRows);
         }
 
         @Override
@@ -134,14 +207,9 @@ public class MatrixComponent extends SpanComponent {
             }
 
             modifyPaint(paint);
-
+            measureColumns(paint);
             int padding = mBackgroundPadding.left + mBackgroundPadding.right;
-            int columnSize = 0;
-            for (int i = 0; i < mData[0].length; i++) {
-                columnSize += getColumnSize(paint, i);
-            }
-            mSize = Math.max(padding + columnSize, mBackground.getIntrinsicWidth());
-
+            mSize = Math.max(padding + (int) mColumnOffsets[mColumns], mBackground.getIntrinsicWidth());
             restorePaint(paint);
 
             return mSize;
@@ -153,17 +221,28 @@ public class MatrixComponent extends SpanComponent {
             mBackground.setBounds((int) x, top - mBackgroundPadding.top, (int) x + mSize, bottom + mBackgroundPadding.bottom);
             mBackground.draw(canvas);
 
-            // Draw the text
+            // Draw the text, but only the cells that can be seen
             modifyPaint(paint);
-            float xOffset = x + mBackgroundPadding.left;
-            for (int i = 0; i < mData.length; i++) {
-                float yOffset = paint.getTextSize();
-                for (int j = 0; j < mData[i].length; j++) {
-                    String pos = mData[i][j];
-                    canvas.drawText(pos, 0, pos.length(), xOffset, yOffset, paint);
-                    yOffset += paint.getTextSize();
+            measureColumns(paint);
+            float left = x + mBackgroundPadding.left;
+            float textSize = paint.getTextSize();
+            if (!canvas.getClipBounds(mClipBounds)) {
+                mClipBounds.set((int) left, top, (int) (left + mColumnOffsets[mColumns]), bottom);
+            }
+            int firstColumn = Math.max(0, columnAt(mClipBounds.left - left));
+            int lastColumn = Math.min(mColumns - 1, columnAt(mClipBounds.right - left));
+            int firstRow = Math.max(0, (int) ((mClipBounds.top - top) / textSize) - 1);
+            int lastRow = Math.min(mRows - 1, (int) ((mClipBounds.bottom - top) / textSize) + 1);
+
+            String equation = getEquation();
+            for (int row = firstRow; row <= lastRow; row++) {
+                float yOffset = top + (row + 1) * textSize;
+                int rowEnd = Math.min(lastColumn, mRowStarts[row + 1] - mRowStarts[row] - 1);
+                for (int column = firstColumn; column <= rowEnd; column++) {
+                    int cellStart = mCellStarts[mRowStarts[row] + column];
+                    int cellEnd = cellStart + cellLength(equation, cellStart);
+                    canvas.drawText(equation, cellStart, cellEnd, left + mColumnOffsets[column], yOffset, paint);
                 }
-                xOffset += getColumnSize(paint, i);
             }
             restorePaint(paint);
 
@@ -178,21 +257,19 @@ public class MatrixComponent extends SpanComponent {
             }
         }
 
+        /**
+         * Returns the column at a distance from the first one
+         * */
+        private int columnAt(float offset) {
+            int index = Arrays.binarySearch(mColumnOffsets, offset);
+            return index >= 0 ? index : -index - 2;
+        }
+
         @Override
         public boolean removeOnBackspace() {
             return true;
         }
 
-        private static int countOccurrences(String haystack, char needle) {
-            int count = 0;
-            for(int i = 0; i < haystack.length(); i++) {
-                if(haystack.charAt(i) == needle) {
-                    count++;
-                }
-            }
-            return count;
-        }
-
         @Override
         public int next() {
             String equation = getEquation();
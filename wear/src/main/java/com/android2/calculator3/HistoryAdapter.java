@@ -18,8 +18,8 @@ package com.android2.calculator3;
 
 import android.content.Context;
 import android.support.v7.widget.RecyclerView;
-import android.text.Html;
 import android.text.Spanned;
+import android.text.SpannedString;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -112,9 +112,8 @@ public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHold
         if (text.matches(".*\\de[-" + Constants.MINUS + "]?\\d.*")) {
             text = text.replace("e", Constants.MUL + "10^");
         }
-        return Html.fromHtml(
-                mEquationFormatter.insertSupScripts(
-                mEquationFormatter.addComas(mSolver, text)));
+        // The formatter reuses its text, so keep a copy
+        return new SpannedString(mEquationFormatter.formatSpanned(mSolver, text, -1, false));
     }
 
     public Context getContext() {
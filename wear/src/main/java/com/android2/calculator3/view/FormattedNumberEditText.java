@@ -18,7 +18,6 @@ package com.android2.calculator3.view;
 
 import android.content.Context;
 import android.text.Editable;
-import android.text.Html;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 
@@ -121,7 +120,7 @@ public class FormattedNumberEditText extends NumberEditText {
         selectionHandle.subtract(TextUtil.countOccurrences(cs, mSolver.getBaseModule().getSeparator()));
 
         // Update the text with formatted (comas, etc) text
-        setText(Html.fromHtml(formatText(text, selectionHandle)));
+        setText(formatText(text, selectionHandle));
         setSelection(selectionHandle.intValue());
     }
 
@@ -241,30 +240,17 @@ public class FormattedNumberEditText extends NumberEditText {
         return input;
     }
 
-    protected String formatText(String input, MutableInteger selectionHandle) {
+    protected CharSequence formatText(String input, MutableInteger selectionHandle) {
         int customHandle = input.indexOf(BaseModule.SELECTION_HANDLE);
         if (customHandle >= 0) {
             selectionHandle.set(customHandle);
             input = input.replace(Character.toString(BaseModule.SELECTION_HANDLE), "");
         }
 
-        if (mSolver != null) {
-            // Add grouping, and then split on the selection handle
-            // which is saved as a unique char
-            String grouped = mEquationFormatter.addComas(mSolver, input, selectionHandle.intValue());
-            if (grouped.contains(String.valueOf(BaseModule.SELECTION_HANDLE))) {
-                String[] temp = grouped.split(String.valueOf(BaseModule.SELECTION_HANDLE));
-                selectionHandle.set(temp[0].length());
-                input = "";
-                for (String s : temp) {
-                    input += s;
-                }
-            } else {
-                input = grouped;
-            }
-        }
-
-        return mEquationFormatter.insertSupScripts(input);
+        // Add grouping and superscripts in one pass, keeping track of the selection handle
+        CharSequence formatted = mEquationFormatter.formatSpanned(mSolver, input, selectionHandle.intValue(), false);
+        selectionHandle.set(mEquationFormatter.getSelectionHandle());
+        return formatted;
     }
 
     protected Solver getSolver() {